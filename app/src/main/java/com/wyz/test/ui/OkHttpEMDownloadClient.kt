@@ -1,6 +1,7 @@
 package com.wyz.test.ui
 
 import com.wyz.emlibrary.download.EMDownloadClient
+import com.wyz.emlibrary.download.EMDownloadResponse
 import okhttp3.Call
 import okhttp3.Callback
 import okhttp3.OkHttpClient
@@ -67,6 +68,15 @@ class OkHttpEMDownloadClient(
         headers: Map<String, String>,
         callback: (InputStream, Long) -> Unit,
         error: (Exception) -> Unit
+    ) {
+        requestResponse(url, headers, { callback(it.body, it.contentLength) }, error)
+    }
+
+    override fun requestResponse(
+        url: String,
+        headers: Map<String, String>,
+        callback: (EMDownloadResponse) -> Unit,
+        error: (Exception) -> Unit
     ) {
         val request = Request.Builder()
             .url(url)
@@ -84,17 +94,33 @@ class OkHttpEMDownloadClient(
 
             override fun onResponse(call: Call, response: Response) {
                 if (!response.isSuccessful) {
+                    response.close()
                     error(IOException("HTTP ${response.code}"))
                     return
                 }
+                val responseHeaders = HashMap<String, String>()
+                response.headers.names().forEach { name ->
+                    responseHeaders[name] = response.headers.values(name).joinToString(", ")
+                }
                 callback(
-                    response.body!!.byteStream(),
-                    response.body!!.contentLength()
+                    EMDownloadResponse(
+                        response.code,
+                        responseHeaders,
+                        response.body!!.byteStream(),
+                        response.body!!.contentLength()
+                    )
                 )
             }
         })
     }
 
+    /**
+     * 分段下载时每个分段一个实例，共享同一个OkHttpClient的连接池
+     */
+    override fun fork(): EMDownloadClient {
+        return OkHttpEMDownloadClient(client)
+    }
+
     override fun cancel() {
         call?.cancel()
     }
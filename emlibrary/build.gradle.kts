@@ -10,6 +10,7 @@ android {
 
     defaultConfig {
         minSdk = 24
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
         consumerProguardFiles("consumer-rules.pro")
     }
 
@@ -30,6 +31,15 @@ android {
     kotlinOptions {
         jvmTarget = "17"
     }
+
+    testOptions {
+        // JVM单元测试中android.util.Log等返回默认值
+        unitTests.isReturnDefaultValues = true
+        // 基准测试默认跳过，-Pbenchmark=true时运行
+        unitTests.all {
+            it.systemProperty("emlibrary.benchmark", project.findProperty("benchmark") ?: "false")
+        }
+    }
 }
 
 dependencies {
@@ -37,6 +47,12 @@ dependencies {
     implementation("androidx.core:core-ktx:1.13.1")
     implementation("androidx.appcompat:appcompat:1.7.0")
     implementation("com.google.android.material:material:1.12.0")
+
+    testImplementation("junit:junit:4.13.2")
+    // JVM单元测试中用Dispatchers.setMain替换主线程调度器
+    testImplementation("org.jetbrains.kotlinx:kotlinx-coroutines-test:1.9.0")
+    androidTestImplementation("androidx.test.ext:junit:1.2.1")
+    androidTestImplementation("androidx.test:runner:1.6.2")
 }
 
 afterEvaluate {
@@ -0,0 +1,82 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.wyz.emlibrary.TAG
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * SQLite与mmap存储引擎的单key读写延迟对比
+ * 对KEY_COUNT个key依次put再get，取每次操作耗时的中位数和p99，结果输出到logcat（TAG：EMLibrary）
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBBackendBenchmarkTest {
+
+    companion object {
+        private const val KEY_COUNT = 2000
+        private const val SQLITE_DB = "bench_backend.db"
+        private const val MMAP_FILE = "bench_backend.kv"
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        cleanUp()
+    }
+
+    @After
+    fun tearDown() {
+        cleanUp()
+    }
+
+    private fun cleanUp() {
+        context.deleteDatabase(SQLITE_DB)
+        context.getDatabasePath(MMAP_FILE).delete()
+    }
+
+    @Test
+    fun compareGetPutLatency() {
+        val sqlite = EMDBSQLiteStorage(context, SQLITE_DB, true)
+        try {
+            run("sqlite", sqlite)
+        } finally {
+            sqlite.close()
+        }
+        val mmap = EMDBMmapStorage(context.getDatabasePath(MMAP_FILE))
+        try {
+            run("mmap", mmap)
+        } finally {
+            mmap.close()
+        }
+    }
+
+    private fun run(name: String, storage: EMDBStorage) {
+        val putNanos = LongArray(KEY_COUNT)
+        val getNanos = LongArray(KEY_COUNT)
+        for (i in 0 until KEY_COUNT) {
+            val begin = System.nanoTime()
+            storage.saveKeyValue("key$i", "value$i", EMDBDao.DB_USER_DEFAULT)
+            putNanos[i] = System.nanoTime() - begin
+        }
+        for (i in 0 until KEY_COUNT) {
+            val begin = System.nanoTime()
+            val value = storage.getStoredValue("key$i", EMDBDao.DB_USER_DEFAULT)
+            getNanos[i] = System.nanoTime() - begin
+            assertEquals("value$i", value)
+        }
+        putNanos.sort()
+        getNanos.sort()
+        Log.d(
+            TAG, "benchmark $name：put p50 ${putNanos[KEY_COUNT / 2] / 1000}us p99 ${putNanos[KEY_COUNT * 99 / 100] / 1000}us，" +
+                    "get p50 ${getNanos[KEY_COUNT / 2] / 1000}us p99 ${getNanos[KEY_COUNT * 99 / 100] / 1000}us"
+        )
+    }
+}
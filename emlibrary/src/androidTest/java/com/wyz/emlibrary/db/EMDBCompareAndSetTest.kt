@@ -0,0 +1,58 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * compareAndSet的expected为""时与getValueByKey的默认值一致：key不存在或值为""都视为匹配
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBCompareAndSetTest {
+
+    companion object {
+        private const val USER_ID = "compare_and_set_user"
+    }
+
+    @Before
+    fun setUp() {
+        EMDBManager.init(ApplicationProvider.getApplicationContext<Context>())
+        EMDBManager.clearKeyValue(USER_ID)
+    }
+
+    @After
+    fun tearDown() {
+        EMDBManager.clearKeyValue(USER_ID)
+    }
+
+    @Test
+    fun emptyExpectedMatchesMissingKey() {
+        assertEquals("", EMDBManager.getValueByKey("flag", "", USER_ID))
+        assertTrue(EMDBManager.compareAndSet("flag", "", "1", USER_ID))
+        assertFalse(EMDBManager.compareAndSet("flag", "", "2", USER_ID))
+        assertFalse(EMDBManager.compareAndSet("flag", null, "2", USER_ID))
+        assertEquals("1", EMDBManager.getValueByKey("flag", "", USER_ID))
+    }
+
+    @Test
+    fun emptyExpectedMatchesEmptyValue() {
+        assertTrue(EMDBManager.saveValueWithKey("flag", "", USER_ID))
+        assertTrue(EMDBManager.compareAndSet("flag", "", "1", USER_ID))
+        assertEquals("1", EMDBManager.getValueByKey("flag", "", USER_ID))
+    }
+
+    @Test
+    fun emptyExpectedMatchesExpiredKey() {
+        assertTrue(EMDBManager.saveValueWithKey("flag", "old", USER_ID, ttlMillis = 1))
+        Thread.sleep(10)
+        assertTrue(EMDBManager.compareAndSet("flag", "", "1", USER_ID))
+        assertEquals("1", EMDBManager.getValueByKey("flag", "", USER_ID))
+    }
+}
@@ -0,0 +1,154 @@
+package com.wyz.emlibrary.db
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * 从v1数据库升级到最新版本：数据保留、表结构与新建数据库一致、新增的列和索引可用
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBMigrationTest {
+
+    companion object {
+        private const val UPGRADE_DB = "migration_upgrade.db"
+        private const val FRESH_DB = "migration_fresh.db"
+        private const val LATEST_VERSION = 4
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        context.deleteDatabase(UPGRADE_DB)
+        context.deleteDatabase(FRESH_DB)
+    }
+
+    @After
+    fun tearDown() {
+        context.deleteDatabase(UPGRADE_DB)
+        context.deleteDatabase(FRESH_DB)
+    }
+
+    /**
+     * 按v1表结构建库并写入数据，user_version为1
+     */
+    private fun seedV1(name: String, rows: List<Triple<String, String, String>>) {
+        val db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(name), null)
+        try {
+            db.execSQL(EMDBConstant.CREATE_KEY_VALUE_TABLE)
+            rows.forEach { (userId, key, value) ->
+                val values = ContentValues()
+                values.put(EMDBConstant.KEY_NAME, key)
+                values.put(EMDBConstant.KEY_VALUE, value)
+                values.put(EMDBConstant.KEY_USER_ID, userId)
+                db.insert(EMDBConstant.KEY_VALUE_TABLE, null, values)
+            }
+            db.version = 1
+        } finally {
+            db.close()
+        }
+    }
+
+    private fun columns(db: SQLiteDatabase): List<String> {
+        return db.rawQuery("PRAGMA table_info(${EMDBConstant.KEY_VALUE_TABLE})", null).use { cursor ->
+            val result = ArrayList<String>()
+            while (cursor.moveToNext()) {
+                result.add("${cursor.getString(1)} ${cursor.getString(2)} ${cursor.getInt(3)} ${cursor.getString(4)}")
+            }
+            result
+        }
+    }
+
+    private fun indexes(db: SQLiteDatabase): List<String> {
+        return db.rawQuery(
+            "SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL ORDER BY name",
+            arrayOf(EMDBConstant.KEY_VALUE_TABLE)
+        ).use { cursor ->
+            val result = ArrayList<String>()
+            while (cursor.moveToNext()) result.add("${cursor.getString(0)}: ${cursor.getString(1)}")
+            result
+        }
+    }
+
+    @Test
+    fun upgradeFromV1KeepsData() {
+        seedV1(UPGRADE_DB, listOf(
+            Triple(EMDBDao.DB_USER_DEFAULT, "token", "abc"),
+            Triple(EMDBDao.DB_USER_DEFAULT, "flag", "1"),
+            Triple("user_a", "token", "user_a_token")
+        ))
+        val helper = EMDBHelper(context, name = UPGRADE_DB)
+        val dao = EMDBDao(helper)
+        try {
+            assertEquals(LATEST_VERSION, helper.readableDatabase.version)
+            assertEquals("abc", dao.getValueByKey("token", "", EMDBDao.DB_USER_DEFAULT))
+            assertEquals("1", dao.getValueByKey("flag", "", EMDBDao.DB_USER_DEFAULT))
+            assertEquals("user_a_token", dao.getValueByKey("token", "", "user_a"))
+        } finally {
+            dao.close()
+            helper.close()
+        }
+    }
+
+    @Test
+    fun upgradedSchemaMatchesFreshSchema() {
+        seedV1(UPGRADE_DB, emptyList())
+        val upgraded = EMDBHelper(context, name = UPGRADE_DB)
+        val fresh = EMDBHelper(context, name = FRESH_DB)
+        try {
+            assertEquals(columns(fresh.readableDatabase), columns(upgraded.readableDatabase))
+            assertEquals(indexes(fresh.readableDatabase), indexes(upgraded.readableDatabase))
+        } finally {
+            upgraded.close()
+            fresh.close()
+        }
+    }
+
+    @Test
+    fun upgradedDatabaseSupportsNewColumns() {
+        seedV1(UPGRADE_DB, listOf(Triple(EMDBDao.DB_USER_DEFAULT, "count", "41")))
+        val helper = EMDBHelper(context, name = UPGRADE_DB)
+        val dao = EMDBDao(helper)
+        try {
+            // v2 key_data：v1的TEXT值可以自增，结果按INTEGER存储
+            assertEquals(42L, dao.increment("count", 1L, EMDBDao.DB_USER_DEFAULT))
+            assertEquals(42L, dao.getStoredValue("count", EMDBDao.DB_USER_DEFAULT))
+            // v4 key_expire_at：已过期的值读取不到
+            dao.saveKeyValue("expired", "value", EMDBDao.DB_USER_DEFAULT, System.currentTimeMillis() - 1)
+            assertNull(dao.getStoredValue("expired", EMDBDao.DB_USER_DEFAULT))
+        } finally {
+            dao.close()
+            helper.close()
+        }
+    }
+
+    @Test
+    fun clearByUserUsesIndexAfterUpgrade() {
+        seedV1(UPGRADE_DB, emptyList())
+        val helper = EMDBHelper(context, name = UPGRADE_DB)
+        try {
+            val plan = helper.readableDatabase.rawQuery(
+                "EXPLAIN QUERY PLAN DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_USER_ID} = ?",
+                arrayOf("user_a")
+            ).use { cursor ->
+                val details = StringBuilder()
+                while (cursor.moveToNext()) details.append(cursor.getString(cursor.columnCount - 1)).append('\n')
+                details.toString()
+            }
+            assertTrue(plan, plan.contains(EMDBConstant.INDEX_KEY_USER_ID))
+        } finally {
+            helper.close()
+        }
+    }
+}
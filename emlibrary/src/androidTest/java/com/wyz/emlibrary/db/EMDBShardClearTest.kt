@@ -0,0 +1,93 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * PerUser分片清空指定user：分片未打开时直接删除文件（不创建数据库），已打开时在整表锁内DELETE
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBShardClearTest {
+
+    companion object {
+        private const val USER_ID = "shard_clear_user"
+        private const val OTHER_USER = "shard_clear_other"
+        private const val USER_FILE_PREFIX = "emlibrary_user_"
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        EMDBManager.close()
+        EMDBManager.init(context, shardMode = EMDBShardMode.PerUser)
+    }
+
+    @After
+    fun tearDown() {
+        EMDBManager.clearKeyValue(USER_ID)
+        EMDBManager.clearKeyValue(OTHER_USER)
+        EMDBManager.close()
+    }
+
+    private fun userFiles(): Set<String> {
+        return context.databaseList().filter { it.startsWith(USER_FILE_PREFIX) && it.endsWith(".db") }.toSet()
+    }
+
+    @Test
+    fun clearUnopenedUserDeletesFile() {
+        val before = userFiles()
+        assertTrue(EMDBManager.saveValueWithKey("key", "value", USER_ID))
+        assertTrue(EMDBManager.saveValueWithKey("key", "other", OTHER_USER))
+        val created = userFiles() - before
+        assertEquals(2, created.size)
+
+        // 重新初始化后分片未打开
+        EMDBManager.close()
+        EMDBManager.init(context, shardMode = EMDBShardMode.PerUser)
+        assertTrue(EMDBManager.clearKeyValue(USER_ID))
+        assertEquals(1, (userFiles() - before).size)
+        assertEquals("other", EMDBManager.getValueByKey("key", "", OTHER_USER))
+        assertEquals("", EMDBManager.getValueByKey("key", "", USER_ID))
+    }
+
+    @Test
+    fun clearUserWithoutDataCreatesNoFile() {
+        val before = userFiles()
+        assertTrue(EMDBManager.clearKeyValue(USER_ID))
+        assertEquals(before, userFiles())
+    }
+
+    @Test
+    fun clearOpenedUserDeletesRows() {
+        assertTrue(EMDBManager.saveValueWithKey("key", "value", USER_ID))
+        assertTrue(EMDBManager.clearKeyValue(USER_ID))
+        assertEquals("", EMDBManager.getValueByKey("key", "", USER_ID))
+    }
+
+    @Test
+    fun clearUnopenedUserDropsPendingWrites() {
+        assertTrue(EMDBManager.saveValueWithKey("key", "value", USER_ID))
+        EMDBManager.close()
+        EMDBManager.init(context, shardMode = EMDBShardMode.PerUser)
+        EMDBManager.applyAsync = true
+        try {
+            // 队列中的写入尚未打开分片
+            EMDBManager.accumulate("count", 1L, USER_ID)
+            assertTrue(EMDBManager.clearKeyValue(USER_ID))
+            assertTrue(EMDBManager.flush())
+            assertEquals(0L, EMDBManager.getLong("count", 0L, USER_ID))
+            assertEquals("", EMDBManager.getValueByKey("key", "", USER_ID))
+        } finally {
+            EMDBManager.applyAsync = false
+        }
+    }
+}
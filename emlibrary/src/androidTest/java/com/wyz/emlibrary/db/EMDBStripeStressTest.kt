@@ -0,0 +1,206 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.wyz.emlibrary.TAG
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 分片与分段锁压力测试
+ * 1.user A持续写入时，user B的读取吞吐不低于无写入时的READ_MIN_RATIO（WAL模式下读不加锁，不等待写入）
+ * 2.PerUser分片下每个线程写自己的user，SCALE_THREADS个线程的写吞吐不低于1个线程的SCALE_MIN_RATIO倍
+ * 3.异步写入、flush、删除、自增并发执行，删除的值不会被flush写回，自增结果不丢失
+ * 吞吐数据同时输出到logcat（TAG：EMLibrary）
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBStripeStressTest {
+
+    companion object {
+        private const val USER_ID = "stripe_stress_user"
+        private const val WRITE_USER = "stripe_stress_writer"
+        private const val READ_USER = "stripe_stress_reader"
+        private const val SHARD_USER_PREFIX = "stripe_stress_shard_"
+        private const val DURATION_MILLIS = 2000L
+        private const val KEY_COUNT = 200
+        private const val READERS = 2
+        private const val WRITERS_UNDER_LOAD = 4
+        private const val READ_MIN_RATIO = 0.5
+        private const val SCALE_THREADS = 4
+        private const val SCALE_MIN_RATIO = 1.5
+        private const val WRITERS = 4
+        private const val ROUNDS = 500
+        private const val COUNTERS = 8
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        // 每个用例按需要的分片方式、缓存大小重新初始化
+        EMDBManager.close()
+    }
+
+    @After
+    fun tearDown() {
+        EMDBManager.applyAsync = false
+        if (EMDBManager.initialized) {
+            EMDBManager.clearKeyValue(USER_ID)
+            EMDBManager.clearKeyValue(WRITE_USER)
+            EMDBManager.clearKeyValue(READ_USER)
+            (0 until SCALE_THREADS).forEach { EMDBManager.clearKeyValue(SHARD_USER_PREFIX + it) }
+        }
+        EMDBManager.close()
+    }
+
+    /**
+     * 启动count个线程执行block(线程下标)，全部结束后返回，线程内的异常在调用线程抛出
+     */
+    private fun runThreads(count: Int, block: (Int) -> Unit) {
+        val errors = Collections.synchronizedList(ArrayList<Throwable>())
+        val start = CountDownLatch(1)
+        val threads = (0 until count).map { index ->
+            Thread {
+                try {
+                    start.await()
+                    block(index)
+                } catch (e: Throwable) {
+                    errors.add(e)
+                }
+            }.apply { start() }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+        errors.firstOrNull()?.let { throw it }
+    }
+
+    /**
+     * 同时运行readers个读线程和writers个写线程DURATION_MILLIS，返回(每秒读次数, 每秒写次数)
+     * @param read 读线程执行一次读取，参数为(线程下标, 次数)
+     * @param write 写线程执行一次写入，参数为(线程下标, 次数)
+     */
+    private fun measure(
+        readers: Int,
+        writers: Int,
+        read: (Int, Int) -> Unit = { _, _ -> },
+        write: (Int, Int) -> Unit = { _, _ -> }
+    ): Pair<Long, Long> {
+        val reads = AtomicLong()
+        val writes = AtomicLong()
+        val running = AtomicBoolean(true)
+        val timer = Thread {
+            Thread.sleep(DURATION_MILLIS)
+            running.set(false)
+        }.apply { start() }
+        runThreads(readers + writers) { index ->
+            var i = 0
+            while (running.get()) {
+                if (index < readers) {
+                    read(index, i)
+                    reads.incrementAndGet()
+                } else {
+                    write(index - readers, i)
+                    writes.incrementAndGet()
+                }
+                i++
+            }
+        }
+        timer.join()
+        return reads.get() * 1000 / DURATION_MILLIS to writes.get() * 1000 / DURATION_MILLIS
+    }
+
+    @Test
+    fun readsDoNotStallBehindWrites() {
+        // 缓存只保留1条，读取基本都落到数据库
+        EMDBManager.init(context, cacheSize = 1)
+        val values = (0 until KEY_COUNT).associate { "key$it" to "value$it" }
+        assertTrue(EMDBManager.saveAll(values, READ_USER))
+        val read: (Int, Int) -> Unit = { index, i ->
+            val key = "key${(i * READERS + index) % KEY_COUNT}"
+            assertEquals(values[key], EMDBManager.getValueByKey(key, "", READ_USER))
+        }
+        val idle = measure(READERS, 0, read).first
+        val (loaded, writes) = measure(READERS, WRITERS_UNDER_LOAD, read) { index, i ->
+            assertTrue(EMDBManager.saveValueWithKey("w${index}_${i % KEY_COUNT}", "v$i", WRITE_USER))
+        }
+        Log.d(TAG, "benchmark stripe：无写入 读 $idle/s，$WRITERS_UNDER_LOAD 线程写入时 读 $loaded/s 写 $writes/s")
+        assertTrue(writes > 0)
+        assertTrue("读 $loaded/s < 无写入时 $idle/s × $READ_MIN_RATIO", loaded >= idle * READ_MIN_RATIO)
+    }
+
+    @Test
+    fun writesScaleAcrossUserShards() {
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= SCALE_THREADS)
+        EMDBManager.init(context, shardMode = EMDBShardMode.PerUser)
+        val write: (Int, Int) -> Unit = { index, i ->
+            assertTrue(EMDBManager.saveValueWithKey("key${i % KEY_COUNT}", "v$i", SHARD_USER_PREFIX + index))
+        }
+        // 先打开各分片，不把建库时间计入吞吐
+        (0 until SCALE_THREADS).forEach { write(it, 0) }
+        val single = measure(0, 1, write = write).second
+        val multiple = measure(0, SCALE_THREADS, write = write).second
+        Log.d(TAG, "benchmark stripe：1 线程 写 $single/s，$SCALE_THREADS 线程（各自分片）写 $multiple/s")
+        assertTrue("写 $multiple/s < 1 线程 $single/s × $SCALE_MIN_RATIO", multiple >= single * SCALE_MIN_RATIO)
+    }
+
+    @Test
+    fun concurrentFlushDeleteAndIncrement() {
+        EMDBManager.init(context)
+        EMDBManager.applyAsync = true
+        val running = AtomicBoolean(true)
+        val flusher = Thread {
+            while (running.get()) EMDBManager.flush()
+        }.apply { start() }
+        try {
+            runThreads(WRITERS * 2) { index ->
+                if (index < WRITERS) {
+                    // 异步写入后立即删除，删除返回后该key不能再被flush写回
+                    for (i in 0 until ROUNDS) {
+                        val key = "deleted_${index}_$i"
+                        EMDBManager.saveValueWithKey(key, "v$i", USER_ID)
+                        EMDBManager.deleteKeyValue(key, USER_ID)
+                    }
+                } else {
+                    // increment与accumulate交替，多个线程竞争同一组计数器
+                    for (i in 0 until ROUNDS) {
+                        val key = "counter_${i % COUNTERS}"
+                        if (i % 2 == 0) {
+                            EMDBManager.increment(key, 1L, USER_ID)
+                        } else {
+                            EMDBManager.accumulate(key, 1L, USER_ID)
+                        }
+                    }
+                }
+            }
+        } finally {
+            running.set(false)
+            flusher.join()
+        }
+        assertTrue(EMDBManager.flush())
+
+        // 关闭后重新打开，绕过读缓存直接检查落库结果
+        EMDBManager.close()
+        EMDBManager.init(context)
+        for (index in 0 until WRITERS) {
+            for (i in 0 until ROUNDS) {
+                assertEquals("", EMDBManager.getValueByKey("deleted_${index}_$i", "", USER_ID))
+            }
+        }
+        val perCounter = WRITERS.toLong() * ROUNDS / COUNTERS
+        for (c in 0 until COUNTERS) {
+            assertEquals(perCounter, EMDBManager.getLong("counter_$c", -1L, USER_ID))
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.wyz.emlibrary.TAG
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * WAL与回滚日志模式的读写吞吐对比
+ * READERS个线程持续读、1个线程持续写，统计DURATION_MILLIS内完成的读写次数
+ * 结果输出到logcat（TAG：EMLibrary），只断言两种模式都能正常读写
+ */
+@RunWith(AndroidJUnit4::class)
+class EMDBWalBenchmarkTest {
+
+    companion object {
+        private const val KEY_COUNT = 1000
+        private const val READERS = 4
+        private const val DURATION_MILLIS = 3000L
+        private const val WAL_DB = "bench_wal.db"
+        private const val JOURNAL_DB = "bench_journal.db"
+    }
+
+    private lateinit var context: Context
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        context.deleteDatabase(WAL_DB)
+        context.deleteDatabase(JOURNAL_DB)
+    }
+
+    @After
+    fun tearDown() {
+        context.deleteDatabase(WAL_DB)
+        context.deleteDatabase(JOURNAL_DB)
+    }
+
+    @Test
+    fun compareReadWriteThroughput() {
+        val journal = run(JOURNAL_DB, walEnabled = false)
+        val wal = run(WAL_DB, walEnabled = true)
+        Log.d(TAG, "benchmark journal：读 ${journal.first}/s 写 ${journal.second}/s")
+        Log.d(TAG, "benchmark wal：读 ${wal.first}/s 写 ${wal.second}/s")
+        assertTrue(journal.first > 0 && journal.second > 0)
+        assertTrue(wal.first > 0 && wal.second > 0)
+    }
+
+    /**
+     * @return (每秒读次数, 每秒写次数)
+     */
+    private fun run(name: String, walEnabled: Boolean): Pair<Long, Long> {
+        val storage = EMDBSQLiteStorage(context, name, walEnabled)
+        try {
+            storage.saveAll((0 until KEY_COUNT).associate { "key$it" to "value$it" }, EMDBDao.DB_USER_DEFAULT)
+            val running = AtomicBoolean(true)
+            val reads = AtomicLong()
+            val writes = AtomicLong()
+            val done = CountDownLatch(READERS + 1)
+            repeat(READERS) { index ->
+                Thread {
+                    var i = index
+                    while (running.get()) {
+                        storage.getStoredValue("key${i % KEY_COUNT}", EMDBDao.DB_USER_DEFAULT)
+                        reads.incrementAndGet()
+                        i += READERS
+                    }
+                    done.countDown()
+                }.start()
+            }
+            Thread {
+                var i = 0
+                while (running.get()) {
+                    storage.saveKeyValue("key${i % KEY_COUNT}", "new$i", EMDBDao.DB_USER_DEFAULT)
+                    writes.incrementAndGet()
+                    i++
+                }
+                done.countDown()
+            }.start()
+            Thread.sleep(DURATION_MILLIS)
+            running.set(false)
+            done.await()
+            val seconds = DURATION_MILLIS / 1000
+            return reads.get() / seconds to writes.get() / seconds
+        } finally {
+            storage.close()
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.wyz.emlibrary.db.provider
+
+import android.content.ContentResolver
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.wyz.emlibrary.TAG
+import com.wyz.emlibrary.db.EMDBManager
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * 读取整个user数据时，Bundle（METHOD_GET_BY_PREFIX）与快照管道（openFile）的延迟对比
+ * 数据量1KB、100KB、1MB，每个value 1KB；结果输出到logcat（TAG：EMLibrary），并校验两种方式读到的数据一致
+ * ⚠️ 测试进程即Provider进程，call()不经过binder，Bundle方式1MB不会触发TransactionTooLargeException
+ */
+@RunWith(AndroidJUnit4::class)
+class EMKVSnapshotLatencyTest {
+
+    companion object {
+        private const val USER_ID = "snapshot_latency_user"
+        private const val VALUE_SIZE = 1024
+        private const val WARMUP = 3
+        private const val ROUNDS = 10
+    }
+
+    private lateinit var resolver: ContentResolver
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        EMDBManager.init(context)
+        resolver = context.contentResolver
+        EMDBManager.clearKeyValue(USER_ID)
+    }
+
+    @After
+    fun tearDown() {
+        EMDBManager.clearKeyValue(USER_ID)
+    }
+
+    @Test
+    fun latency1KB() {
+        compare(1024)
+    }
+
+    @Test
+    fun latency100KB() {
+        compare(100 * 1024)
+    }
+
+    @Test
+    fun latency1MB() {
+        compare(1024 * 1024)
+    }
+
+    private fun compare(totalBytes: Int) {
+        val value = "v".repeat(VALUE_SIZE)
+        val expected = (0 until totalBytes / VALUE_SIZE).associate { "key$it" to value }
+        EMDBManager.saveAll(expected, USER_ID)
+
+        repeat(WARMUP) {
+            readByBundle()
+            readBySnapshot()
+        }
+        var bundleNanos = 0L
+        var snapshotNanos = 0L
+        repeat(ROUNDS) {
+            var begin = System.nanoTime()
+            val byBundle = readByBundle()
+            bundleNanos += System.nanoTime() - begin
+            begin = System.nanoTime()
+            val bySnapshot = readBySnapshot()
+            snapshotNanos += System.nanoTime() - begin
+            assertEquals(expected, byBundle)
+            assertEquals(expected, bySnapshot)
+        }
+        Log.d(
+            TAG, "benchmark snapshot ${totalBytes / 1024}KB：" +
+                    "bundle ${bundleNanos / ROUNDS / 1000}us，pipe ${snapshotNanos / ROUNDS / 1000}us"
+        )
+    }
+
+    private fun readByBundle(): Map<String, String> {
+        val extras = Bundle()
+        extras.putString(EMDBKVProvider.PARAMS_USER_ID, USER_ID)
+        extras.putString(EMDBKVProvider.PARAMS_PREFIX, "")
+        val result = resolver.call(EMDBKVProvider.BASE_URI, EMDBKVProvider.METHOD_GET_BY_PREFIX, null, extras)
+        val values = result?.getBundle(EMDBKVProvider.RESULT_VALUE)
+        assertNotNull(values)
+        return values!!.keySet().associateWith { values.getString(it)!! }
+    }
+
+    private fun readBySnapshot(): Map<String, String> {
+        val pfd = resolver.openFileDescriptor(EMDBKVProvider.snapshotUri(USER_ID), "r")
+        assertNotNull(pfd)
+        return EMKVClient.readSnapshot(pfd!!)
+    }
+}
@@ -0,0 +1,101 @@
+package com.wyz.emlibrary.db
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * key_value_table导出/导入的二进制格式
+ *
+ * MAGIC(int) | VERSION(int) | record * N | END(byte)
+ * record：type(byte) | userId | key | expireAt(long) | value
+ * 字符串与BLOB均为 length(int) + bytes，字符串为UTF-8；LONG/DOUBLE为8字节定长
+ * 逐条读写，不需要预先知道总行数，内存占用与表大小无关
+ */
+internal object EMDBBackup {
+
+    private const val MAGIC = 0x454D4442
+    private const val VERSION = 1
+
+    private const val TYPE_END: Byte = 0
+    private const val TYPE_TEXT: Byte = 1
+    private const val TYPE_LONG: Byte = 2
+    private const val TYPE_DOUBLE: Byte = 3
+    private const val TYPE_BLOB: Byte = 4
+
+    /**
+     * @param value String / Long / Double / ByteArray
+     * @param expireAt 过期时间戳（毫秒），0表示永不过期
+     */
+    class Row(val userId: String, val key: String, val value: Any, val expireAt: Long)
+
+    fun writeHeader(out: DataOutputStream) {
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+    }
+
+    fun writeRow(out: DataOutputStream, row: Row) {
+        val type = when (row.value) {
+            is String -> TYPE_TEXT
+            is Long -> TYPE_LONG
+            is Double -> TYPE_DOUBLE
+            is ByteArray -> TYPE_BLOB
+            else -> throw IllegalArgumentException("不支持的类型：${row.value.javaClass.name}")
+        }
+        out.writeByte(type.toInt())
+        writeBytes(out, row.userId.toByteArray(Charsets.UTF_8))
+        writeBytes(out, row.key.toByteArray(Charsets.UTF_8))
+        out.writeLong(row.expireAt)
+        when (row.value) {
+            is String -> writeBytes(out, row.value.toByteArray(Charsets.UTF_8))
+            is Long -> out.writeLong(row.value)
+            is Double -> out.writeDouble(row.value)
+            is ByteArray -> writeBytes(out, row.value)
+        }
+    }
+
+    fun writeEnd(out: DataOutputStream) {
+        out.writeByte(TYPE_END.toInt())
+    }
+
+    @Throws(IOException::class)
+    fun readHeader(inp: DataInputStream) {
+        if (inp.readInt() != MAGIC) throw IOException("invalid backup")
+        val version = inp.readInt()
+        if (version != VERSION) throw IOException("unsupported backup version: $version")
+    }
+
+    /**
+     * @return null 已读到结尾
+     * @throws IOException 格式错误或数据被截断
+     */
+    @Throws(IOException::class)
+    fun readRow(inp: DataInputStream): Row? {
+        val type = inp.readByte()
+        if (type == TYPE_END) return null
+        val userId = String(readBytes(inp), Charsets.UTF_8)
+        val key = String(readBytes(inp), Charsets.UTF_8)
+        val expireAt = inp.readLong()
+        val value: Any = when (type) {
+            TYPE_TEXT -> String(readBytes(inp), Charsets.UTF_8)
+            TYPE_LONG -> inp.readLong()
+            TYPE_DOUBLE -> inp.readDouble()
+            TYPE_BLOB -> readBytes(inp)
+            else -> throw IOException("unknown type: $type")
+        }
+        return Row(userId, key, value, expireAt)
+    }
+
+    private fun writeBytes(out: DataOutputStream, bytes: ByteArray) {
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun readBytes(inp: DataInputStream): ByteArray {
+        val length = inp.readInt()
+        if (length < 0) throw IOException("invalid length: $length")
+        val bytes = ByteArray(length)
+        inp.readFully(bytes)
+        return bytes
+    }
+}
@@ -0,0 +1,143 @@
+package com.wyz.emlibrary.db
+
+import android.util.LruCache
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 进程内KV读缓存（LRU淘汰）
+ * 以(userId, key)为键缓存数据库中的值，首次读取时填充，写入、删除、清空时同步更新
+ * 数据库中不存在的key同样会被缓存（ABSENT），避免重复查库
+ * 带过期时间的值（EMDBValue.Expiring）过期后移出缓存并计为未命中，由调用方重新读库
+ * ⚠️ 只有当前进程内的写操作都经过EMDBManager时缓存才是准确的，跨进程请使用provider
+ *
+ * 读操作不加锁，为避免"读到旧值 -> 写线程更新缓存 -> 读线程用旧值覆盖缓存"，
+ * 读库前通过readVersion()记录版本号，回填时使用putIfUnchanged()，期间有写入则放弃回填
+ */
+internal class EMDBCache(maxSize: Int) {
+
+    companion object {
+        /**
+         * 数据库中不存在该key的占位值
+         */
+        val ABSENT = Any()
+    }
+
+    private data class CacheKey(val userId: String, val key: String)
+
+    private val cache = LruCache<CacheKey, Any>(maxSize)
+
+    /**
+     * 每次写入、删除、清空时递增
+     */
+    private val version = AtomicLong()
+
+    /**
+     * 读到已过期值的次数，LruCache已将其计为命中，统计时改计为未命中
+     */
+    private val expiredCount = AtomicInteger()
+
+    /**
+     * @return null 未命中或已过期；ABSENT 数据库中不存在；其他为缓存的值
+     */
+    fun get(key: String, userId: String): Any? {
+        val cacheKey = CacheKey(userId, key)
+        val value = cache.get(cacheKey)
+        if (value is EMDBValue.Expiring) {
+            if (!value.isExpired()) return value.value
+            removeExpired(cacheKey, value)
+            return null
+        }
+        return value
+    }
+
+    /**
+     * 移除已过期的值；期间已被写入新值时保留新值
+     * 不改变version：数据库内容未变化，进行中的回填仍然有效
+     */
+    private fun removeExpired(cacheKey: CacheKey, expired: EMDBValue.Expiring) {
+        expiredCount.incrementAndGet()
+        synchronized(this) {
+            val current = cache.remove(cacheKey)
+            if (current != null && current !== expired) cache.put(cacheKey, current)
+        }
+    }
+
+    fun readVersion(): Long {
+        return version.get()
+    }
+
+    /**
+     * 读库后回填缓存，期间有写操作则放弃回填
+     * @param value 为null时记为ABSENT
+     */
+    fun putIfUnchanged(key: String, userId: String, value: Any?, readVersion: Long) {
+        synchronized(this) {
+            if (version.get() != readVersion) return
+            cache.put(CacheKey(userId, key), value ?: ABSENT)
+        }
+    }
+
+    /**
+     * 写操作同步缓存
+     * @param value 为null时记为ABSENT
+     */
+    fun put(key: String, userId: String, value: Any?) {
+        synchronized(this) {
+            version.incrementAndGet()
+            cache.put(CacheKey(userId, key), value ?: ABSENT)
+        }
+    }
+
+    fun remove(key: String, userId: String) {
+        synchronized(this) {
+            version.incrementAndGet()
+            cache.remove(CacheKey(userId, key))
+        }
+    }
+
+    /**
+     * 1.清空指定userid下的缓存
+     * 2.清空所有缓存
+     */
+    fun clear(userId: String? = null) {
+        synchronized(this) {
+            version.incrementAndGet()
+            if (userId == null) {
+                cache.evictAll()
+                return
+            }
+            cache.snapshot().keys.forEach {
+                if (it.userId == userId) cache.remove(it)
+            }
+        }
+    }
+
+    fun stats(): EMDBCacheStats {
+        val expired = expiredCount.get()
+        return EMDBCacheStats(
+            hitCount = cache.hitCount() - expired,
+            missCount = cache.missCount() + expired,
+            evictionCount = cache.evictionCount(),
+            size = cache.size(),
+            maxSize = cache.maxSize()
+        )
+    }
+}
+
+/**
+ * 缓存命中统计
+ * @param hitCount 命中次数（未访问数据库）
+ * @param missCount 未命中次数（访问了数据库）
+ * @param evictionCount LRU淘汰次数
+ */
+data class EMDBCacheStats(
+    val hitCount: Int,
+    val missCount: Int,
+    val evictionCount: Int,
+    val size: Int,
+    val maxSize: Int
+) {
+    val hitRate: Float
+        get() = if (hitCount + missCount == 0) 0f else hitCount.toFloat() / (hitCount + missCount)
+}
@@ -6,12 +6,19 @@ object EMDBConstant {
      * 通用key-value相关
      * key_name 和 key_user_id 组合唯一
      * key_id 主键自增
+     * key_value 存储String类型的值
+     * key_data 存储Int/Long/Float/Double/ByteArray类型的值（v2新增，无类型亲和性，按原类型存储）
+     * key_expire_at 过期时间戳（毫秒，v4新增），0表示永不过期
+     *
+     * CREATE_KEY_VALUE_TABLE 为v1建表语句，新建数据库时建表后依次执行迁移升级到最新版本
      */
     const val KEY_VALUE_TABLE = "key_value_table"
     const val KEY_ID = "key_id"
     const val KEY_NAME = "key_name"
     const val KEY_VALUE = "key_value"
     const val KEY_USER_ID = "key_user_id"
+    const val KEY_DATA = "key_data"
+    const val KEY_EXPIRE_AT = "key_expire_at"
     const val CREATE_KEY_VALUE_TABLE =
         "CREATE TABLE $KEY_VALUE_TABLE (" +
                 "$KEY_ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -20,4 +27,25 @@ object EMDBConstant {
                 "$KEY_USER_ID TEXT, " +
                 "UNIQUE($KEY_NAME, $KEY_USER_ID)" +
                 ")"
+
+    /**
+     * v1 -> v2 新增key_data列
+     */
+    const val ADD_KEY_DATA_COLUMN = "ALTER TABLE $KEY_VALUE_TABLE ADD COLUMN $KEY_DATA"
+
+    /**
+     * v2 -> v3 新增key_user_id索引，按userid清空时不再全表扫描
+     */
+    const val INDEX_KEY_USER_ID = "index_key_user_id"
+    const val CREATE_INDEX_KEY_USER_ID =
+        "CREATE INDEX IF NOT EXISTS $INDEX_KEY_USER_ID ON $KEY_VALUE_TABLE($KEY_USER_ID)"
+
+    /**
+     * v3 -> v4 新增过期时间列及其部分索引（只索引会过期的行），供过期清理使用
+     */
+    const val ADD_KEY_EXPIRE_AT_COLUMN =
+        "ALTER TABLE $KEY_VALUE_TABLE ADD COLUMN $KEY_EXPIRE_AT INTEGER NOT NULL DEFAULT 0"
+    const val INDEX_KEY_EXPIRE_AT = "index_key_expire_at"
+    const val CREATE_INDEX_KEY_EXPIRE_AT =
+        "CREATE INDEX IF NOT EXISTS $INDEX_KEY_EXPIRE_AT ON $KEY_VALUE_TABLE($KEY_EXPIRE_AT) WHERE $KEY_EXPIRE_AT > 0"
 }
\ No newline at end of file
@@ -1,14 +1,19 @@
 package com.wyz.emlibrary.db
 
-import android.content.ContentValues
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteDoneException
+import android.database.sqlite.SQLiteStatement
 import android.util.Log
 import com.wyz.emlibrary.TAG
+import java.util.concurrent.ConcurrentLinkedQueue
 
 /**
  * 文件删除时，先本地对比是否存在相同名称文件若存在则改名。完成上述操作后插入数据库
  * 文件恢复时，先将文件复制出去、改名。删除数据库
+ *
+ * 单条读写使用预编译语句缓存（SQLiteStatement），避免每次拼接SQL、创建ContentValues和Cursor
+ * 写语句共用一把锁串行执行；读语句放在池中，并发读时各自取用
  */
 class EMDBDao(private val dbHelper: EMDBHelper) {
 
@@ -17,19 +22,165 @@ class EMDBDao(private val dbHelper: EMDBHelper) {
          * 默认user用户
          */
         const val DB_USER_DEFAULT = "user_default"
+
+        /**
+         * 未过期条件，参数为当前时间戳
+         */
+        private const val NOT_EXPIRED =
+            "(${EMDBConstant.KEY_EXPIRE_AT} = 0 OR ${EMDBConstant.KEY_EXPIRE_AT} > ?)"
+
+        private const val SQL_REPLACE =
+            "INSERT OR REPLACE INTO ${EMDBConstant.KEY_VALUE_TABLE} (${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_USER_ID}, ${EMDBConstant.KEY_EXPIRE_AT}) VALUES (?, ?, ?, ?)"
+        private const val SQL_REPLACE_DATA =
+            "INSERT OR REPLACE INTO ${EMDBConstant.KEY_VALUE_TABLE} (${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_USER_ID}, ${EMDBConstant.KEY_EXPIRE_AT}) VALUES (?, ?, ?, ?)"
+        /**
+         * 存储值的字符串形式（类型化存储的值转为TEXT），用于条件写入时与新值比较
+         */
+        private const val STORED_TEXT =
+            "(CASE WHEN ${EMDBConstant.KEY_DATA} IS NULL THEN ${EMDBConstant.KEY_VALUE} ELSE CAST(${EMDBConstant.KEY_DATA} AS TEXT) END)"
+        /**
+         * 条件写入（API 30以下的SQLite不支持UPSERT，拆为 UPDATE + INSERT OR IGNORE 两条写语句，不再先查询）
+         * 带有效期的行总是被覆盖（同时清除有效期，与saveKeyValue一致）
+         */
+        private const val SQL_UPDATE_IF_CHANGED =
+            "UPDATE ${EMDBConstant.KEY_VALUE_TABLE} SET ${EMDBConstant.KEY_VALUE} = ?, ${EMDBConstant.KEY_DATA} = NULL, ${EMDBConstant.KEY_EXPIRE_AT} = 0 " +
+                    "WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? AND ($STORED_TEXT IS NOT ? OR ${EMDBConstant.KEY_EXPIRE_AT} != 0)"
+        private const val SQL_INSERT_IGNORE =
+            "INSERT OR IGNORE INTO ${EMDBConstant.KEY_VALUE_TABLE} (${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_USER_ID}, ${EMDBConstant.KEY_EXPIRE_AT}) VALUES (?, ?, ?, 0)"
+        private const val SQL_COMPARE_AND_SET =
+            "UPDATE ${EMDBConstant.KEY_VALUE_TABLE} SET ${EMDBConstant.KEY_VALUE} = ?, ${EMDBConstant.KEY_DATA} = NULL, ${EMDBConstant.KEY_EXPIRE_AT} = 0 " +
+                    "WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? AND $STORED_TEXT = ? AND $NOT_EXPIRED"
+        private const val SQL_DELETE_EXPIRED_KEY =
+            "DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? " +
+                    "AND ${EMDBConstant.KEY_EXPIRE_AT} > 0 AND ${EMDBConstant.KEY_EXPIRE_AT} <= ?"
+        /**
+         * 原子自增：在原值（INTEGER、可解析的TEXT，已过期或不存在视为0）上加delta，按INTEGER存储并清除有效期
+         */
+        private const val SQL_INCREMENT =
+            "UPDATE ${EMDBConstant.KEY_VALUE_TABLE} SET ${EMDBConstant.KEY_DATA} = " +
+                    "(CASE WHEN ${EMDBConstant.KEY_EXPIRE_AT} > 0 AND ${EMDBConstant.KEY_EXPIRE_AT} <= ? THEN 0 " +
+                    "ELSE CAST(COALESCE(${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_VALUE}, 0) AS INTEGER) END) + ?, " +
+                    "${EMDBConstant.KEY_VALUE} = NULL, ${EMDBConstant.KEY_EXPIRE_AT} = 0 " +
+                    "WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ?"
+        private const val SQL_GET_DATA_LONG =
+            "SELECT ${EMDBConstant.KEY_DATA} FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ?"
+        /**
+         * 按主键分页导出未过期的数据，LIMIT拼接在末尾
+         */
+        private const val SQL_EXPORT_PAGE =
+            "SELECT ${EMDBConstant.KEY_ID}, ${EMDBConstant.KEY_USER_ID}, ${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_EXPIRE_AT} " +
+                    "FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_ID} > ? AND $NOT_EXPIRED ORDER BY ${EMDBConstant.KEY_ID} LIMIT "
+        /**
+         * SQLite单条语句参数上限为999
+         */
+        private const val MAX_SQL_ARGS = 999
+
+        /**
+         * 前缀查询的上界后缀（U+10FFFF），配合 >= 前缀 构成索引范围查询
+         */
+        private const val PREFIX_UPPER_BOUND = "\uDBFF\uDFFF"
+
+        private const val SQL_DELETE =
+            "DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ?"
+        private const val SQL_CLEAR_USER =
+            "DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_USER_ID} = ?"
+        private const val SQL_CLEAR_ALL =
+            "DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE}"
+        /**
+         * 只读取永不过期的String值（最常见的情况），无需比较时间戳
+         */
+        private const val SQL_GET_STRING =
+            "SELECT ${EMDBConstant.KEY_VALUE} FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? AND ${EMDBConstant.KEY_EXPIRE_AT} = 0"
+        private const val SQL_GET_STORED =
+            "SELECT ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_EXPIRE_AT} FROM ${EMDBConstant.KEY_VALUE_TABLE} " +
+                    "WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? AND $NOT_EXPIRED"
+        private const val SQL_GET_CURSOR =
+            "SELECT * FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ? AND $NOT_EXPIRED"
+        private const val SQL_GET_USER =
+            "SELECT ${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_EXPIRE_AT} FROM ${EMDBConstant.KEY_VALUE_TABLE} " +
+                    "WHERE ${EMDBConstant.KEY_USER_ID} = ? AND $NOT_EXPIRED"
+        private const val SQL_GET_PREFIX =
+            "SELECT ${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_EXPIRE_AT} FROM ${EMDBConstant.KEY_VALUE_TABLE} " +
+                    "WHERE ${EMDBConstant.KEY_NAME} >= ? AND ${EMDBConstant.KEY_NAME} < ? AND ${EMDBConstant.KEY_USER_ID} = ? AND $NOT_EXPIRED"
+        /**
+         * 过期清理 走key_expire_at部分索引
+         */
+        private const val SQL_GET_EXPIRED =
+            "SELECT ${EMDBConstant.KEY_ID}, ${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_USER_ID} FROM ${EMDBConstant.KEY_VALUE_TABLE} " +
+                    "WHERE ${EMDBConstant.KEY_EXPIRE_AT} > 0 AND ${EMDBConstant.KEY_EXPIRE_AT} <= ? LIMIT "
+        private const val SQL_DELETE_EXPIRED =
+            "DELETE FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_ID} = ? AND ${EMDBConstant.KEY_EXPIRE_AT} > 0 AND ${EMDBConstant.KEY_EXPIRE_AT} <= ?"
+
+        /**
+         * 读语句池的最大数量
+         */
+        private const val MAX_READ_STATEMENTS = 4
+    }
+
+    /**
+     * 写语句缓存 sql -> statement，同时作为写语句的锁
+     */
+    private val writeStatements = HashMap<String, SQLiteStatement>()
+
+    /**
+     * 读语句池
+     */
+    private val readStatements = ConcurrentLinkedQueue<SQLiteStatement>()
+
+    /**
+     * 使用缓存的写语句，执行后清空绑定参数
+     */
+    private inline fun <T> withWriteStatement(sql: String, block: (SQLiteStatement) -> T): T {
+        synchronized(writeStatements) {
+            val statement = writeStatements.getOrPut(sql) { dbHelper.writableDatabase.compileStatement(sql) }
+            try {
+                return block(statement)
+            } finally {
+                statement.clearBindings()
+            }
+        }
+    }
+
+    /**
+     * 从池中取出读语句，用完放回
+     */
+    private inline fun <T> withReadStatement(block: (SQLiteStatement) -> T): T {
+        val statement = readStatements.poll() ?: dbHelper.readableDatabase.compileStatement(SQL_GET_STRING)
+        try {
+            return block(statement)
+        } finally {
+            statement.clearBindings()
+            if (readStatements.size < MAX_READ_STATEMENTS) readStatements.offer(statement) else statement.close()
+        }
+    }
+
+    /**
+     * 关闭缓存的预编译语句，关闭数据库前调用
+     */
+    fun close() {
+        synchronized(writeStatements) {
+            writeStatements.values.forEach { it.close() }
+            writeStatements.clear()
+        }
+        while (true) {
+            val statement = readStatements.poll() ?: break
+            statement.close()
+        }
     }
 
     /**
      * 通用key-value存储
+     * @param expireAt 过期时间戳（毫秒），0表示永不过期
      */
-    fun saveKeyValue(key: String, value: String, userId: String = DB_USER_DEFAULT): Boolean {
-        val db: SQLiteDatabase = dbHelper.writableDatabase
+    fun saveKeyValue(key: String, value: String, userId: String = DB_USER_DEFAULT, expireAt: Long = 0L): Boolean {
         return try {
-            val contentValues = ContentValues()
-            contentValues.put(EMDBConstant.KEY_NAME, key)
-            contentValues.put(EMDBConstant.KEY_VALUE, value)
-            contentValues.put(EMDBConstant.KEY_USER_ID, userId)
-            db.replace(EMDBConstant.KEY_VALUE_TABLE, null, contentValues)
+            withWriteStatement(SQL_REPLACE) { statement ->
+                statement.bindString(1, key)
+                statement.bindString(2, value)
+                statement.bindString(3, userId)
+                statement.bindLong(4, expireAt)
+                statement.executeInsert()
+            }
             Log.d(TAG, "数据库key_value表更新：key:$key,value:$value,userId:$userId")
             true
         } catch (e: Exception) {
@@ -38,15 +189,217 @@ class EMDBDao(private val dbHelper: EMDBHelper) {
         }
     }
 
+    /**
+     * 类型化存储 数值、字节数组直接绑定为INTEGER/REAL/BLOB，不经过String转换
+     * @param value Int/Long/Float/Double/ByteArray
+     * @param expireAt 过期时间戳（毫秒），0表示永不过期
+     */
+    fun saveTypedValue(key: String, value: Any, userId: String = DB_USER_DEFAULT, expireAt: Long = 0L): Boolean {
+        return try {
+            withWriteStatement(SQL_REPLACE_DATA) { statement ->
+                statement.bindString(1, key)
+                bindData(statement, 2, value)
+                statement.bindString(3, userId)
+                statement.bindLong(4, expireAt)
+                statement.executeInsert()
+            }
+            Log.d(TAG, "数据库key_value表更新：key:$key,type:${value.javaClass.simpleName},userId:$userId")
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表更新异常：${e.message}")
+            false
+        }
+    }
+
+    private fun bindData(statement: SQLiteStatement, index: Int, value: Any) {
+        when (value) {
+            is Long -> statement.bindLong(index, value)
+            is Int -> statement.bindLong(index, value.toLong())
+            is Double -> statement.bindDouble(index, value)
+            is Float -> statement.bindDouble(index, value.toDouble())
+            is ByteArray -> statement.bindBlob(index, value)
+            else -> throw IllegalArgumentException("不支持的类型：${value.javaClass.name}")
+        }
+    }
+
+    /**
+     * 通用key-value批量存储
+     * 单事务内复用同一条预编译语句，避免每条数据单独提交事务
+     */
+    fun saveAll(values: Map<String, String>, userId: String = DB_USER_DEFAULT): Boolean {
+        return saveAllUsers(mapOf(userId to values))
+    }
+
+    /**
+     * 多个userid的key-value批量存储 单事务提交
+     * @param values userId -> (key -> value)
+     */
+    fun saveAllUsers(values: Map<String, Map<String, String>>): Boolean {
+        if (values.values.all { it.isEmpty() }) return true
+        val db: SQLiteDatabase = dbHelper.writableDatabase
+        return try {
+            // 先持有写语句锁再开启事务，避免与单条写入互相等待
+            withWriteStatement(SQL_REPLACE) { statement ->
+                db.beginTransaction()
+                try {
+                    values.forEach { (userId, userValues) ->
+                        userValues.forEach { (key, value) ->
+                            statement.bindString(1, key)
+                            statement.bindString(2, value)
+                            statement.bindString(3, userId)
+                            statement.bindLong(4, 0L)
+                            statement.executeInsert()
+                        }
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+            Log.d(TAG, "数据库key_value表批量更新：size:${values.values.sumOf { it.size }},userId:${values.keys}")
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表批量更新异常：${e.message}")
+            false
+        }
+    }
+
+    /**
+     * 仅当新值与存储值不同时写入，单事务内只执行写语句，不需要先读出旧值
+     * key不存在时：value为空串视为未变化（与读取默认值一致），否则插入
+     * @return 1 已写入 0 值未变化 -1 写入失败
+     */
+    fun saveIfChanged(key: String, value: String, userId: String = DB_USER_DEFAULT): Int {
+        val db = dbHelper.writableDatabase
+        return try {
+            withWriteStatement(SQL_UPDATE_IF_CHANGED) { update ->
+                db.beginTransaction()
+                try {
+                    update.bindString(1, value)
+                    update.bindString(2, key)
+                    update.bindString(3, userId)
+                    update.bindString(4, value)
+                    var result = if (update.executeUpdateDelete() > 0) 1 else 0
+                    if (result == 0 && value.isNotEmpty()) {
+                        // 没有更新到行：key不存在（插入）或值相同（忽略）
+                        result = withWriteStatement(SQL_INSERT_IGNORE) { insert ->
+                            insert.bindString(1, key)
+                            insert.bindString(2, value)
+                            insert.bindString(3, userId)
+                            if (insert.executeInsert() == -1L) 0 else 1
+                        }
+                    }
+                    db.setTransactionSuccessful()
+                    result
+                } finally {
+                    db.endTransaction()
+                }
+            }.also {
+                Log.d(TAG, "数据库key_value表条件更新：key:$key,value:$value,userId:$userId,result:$it")
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表条件更新异常：${e.message}")
+            -1
+        }
+    }
+
+    /**
+     * 比较并设置：仅当存储值（未过期）等于expected时写入newValue
+     * @param expected 为null表示要求key不存在（或已过期）；为""时与getValueByKey的默认值一致，值为""或key不存在都视为匹配
+     * @return true 写入成功 false 当前值不符或写入失败
+     */
+    fun compareAndSet(key: String, expected: String?, newValue: String, userId: String = DB_USER_DEFAULT): Boolean {
+        val db = dbHelper.writableDatabase
+        val now = System.currentTimeMillis()
+        return try {
+            withWriteStatement(SQL_COMPARE_AND_SET) { statement ->
+                db.beginTransaction()
+                try {
+                    var result = false
+                    if (expected != null) {
+                        statement.bindString(1, newValue)
+                        statement.bindString(2, key)
+                        statement.bindString(3, userId)
+                        statement.bindString(4, expected)
+                        statement.bindLong(5, now)
+                        result = statement.executeUpdateDelete() > 0
+                    }
+                    if (!result && expected.isNullOrEmpty()) {
+                        result = withWriteStatement(SQL_DELETE_EXPIRED_KEY) { delete ->
+                            // 已过期的行视为不存在，先删除才能插入
+                            delete.bindString(1, key)
+                            delete.bindString(2, userId)
+                            delete.bindLong(3, now)
+                            delete.executeUpdateDelete()
+                            withWriteStatement(SQL_INSERT_IGNORE) { insert ->
+                                insert.bindString(1, key)
+                                insert.bindString(2, newValue)
+                                insert.bindString(3, userId)
+                                insert.executeInsert() != -1L
+                            }
+                        }
+                    }
+                    db.setTransactionSuccessful()
+                    result
+                } finally {
+                    db.endTransaction()
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表compareAndSet异常：${e.message}")
+            false
+        }
+    }
+
+    /**
+     * 原子自增，单事务内完成 UPDATE（不存在时INSERT）并读回新值
+     * @return 自增后的值，null 写入失败
+     */
+    fun increment(key: String, delta: Long, userId: String = DB_USER_DEFAULT): Long? {
+        val db = dbHelper.writableDatabase
+        return try {
+            withWriteStatement(SQL_INCREMENT) { update ->
+                db.beginTransaction()
+                try {
+                    update.bindLong(1, System.currentTimeMillis())
+                    update.bindLong(2, delta)
+                    update.bindString(3, key)
+                    update.bindString(4, userId)
+                    val result = if (update.executeUpdateDelete() > 0) {
+                        withWriteStatement(SQL_GET_DATA_LONG) { query ->
+                            query.bindString(1, key)
+                            query.bindString(2, userId)
+                            query.simpleQueryForLong()
+                        }
+                    } else {
+                        withWriteStatement(SQL_REPLACE_DATA) { insert ->
+                            insert.bindString(1, key)
+                            insert.bindLong(2, delta)
+                            insert.bindString(3, userId)
+                            insert.bindLong(4, 0L)
+                            insert.executeInsert()
+                        }
+                        delta
+                    }
+                    db.setTransactionSuccessful()
+                    result
+                } finally {
+                    db.endTransaction()
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表自增异常：${e.message}")
+            null
+        }
+    }
+
     /**
      * 通用key-value读取cursor
      */
     fun getCursorByKey(key: String, userId: String = DB_USER_DEFAULT): Cursor? {
         val db = dbHelper.readableDatabase
         return try {
-            val sql =
-                "SELECT * FROM ${EMDBConstant.KEY_VALUE_TABLE} WHERE ${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ?"
-            db.rawQuery(sql, arrayOf(key, userId))
+            db.rawQuery(SQL_GET_CURSOR, arrayOf(key, userId, System.currentTimeMillis().toString()))
         } catch (e: Exception) {
             Log.e(TAG, "数据库读取异常：${e.message}")
             null
@@ -58,27 +411,156 @@ class EMDBDao(private val dbHelper: EMDBHelper) {
      */
     fun getValueByKey(key: String, defaultValue: String = "", userId: String = DB_USER_DEFAULT): String {
         return try {
-            getCursorByKey(key, userId)?.use { cursor ->
-                if (!cursor.moveToFirst()) return defaultValue
-                val index = cursor.getColumnIndexOrThrow(EMDBConstant.KEY_VALUE)
-                cursor.getString(index) ?: defaultValue
-            } ?: defaultValue
+            EMDBValue.asString(EMDBValue.unwrap(getStoredValue(key, userId))) ?: defaultValue
         } catch (e: Exception) {
             Log.e(TAG, "数据库读取异常：${e.message}")
             defaultValue
         }
     }
 
+    /**
+     * 通用key-value读取 返回存储的原始类型
+     * 永不过期的String值通过预编译语句simpleQueryForString读取，不创建Cursor；类型化或带过期时间的值需要Cursor读取
+     * ⚠️ 异常由调用方处理，用于区分"不存在"和"读取失败"
+     * @return null key不存在或已过期；String / Long / Double / ByteArray，带过期时间的值包装为EMDBValue.Expiring
+     */
+    fun getStoredValue(key: String, userId: String = DB_USER_DEFAULT): Any? {
+        val value = try {
+            withReadStatement { statement ->
+                statement.bindString(1, key)
+                statement.bindString(2, userId)
+                statement.simpleQueryForString()
+            }
+        } catch (e: SQLiteDoneException) {
+            // 没有永不过期的行
+            null
+        }
+        if (value != null) return value
+
+        // 类型化的值或带过期时间的值
+        val db = dbHelper.readableDatabase
+        val args = arrayOf(key, userId, System.currentTimeMillis().toString())
+        return db.rawQuery(SQL_GET_STORED, args).use { cursor ->
+            if (!cursor.moveToFirst()) null
+            else EMDBValue.withExpire(EMDBValue.read(cursor, 0, 1), cursor.getLong(2))
+        }
+    }
+
+    /**
+     * 通用key-value批量读取 IN查询走(key_name, key_user_id)唯一索引
+     * ⚠️ 异常由调用方处理
+     * @return 存在的key及其原始类型的值，不存在的key不在结果中
+     */
+    fun getValues(keys: Collection<String>, userId: String = DB_USER_DEFAULT): Map<String, Any> {
+        val result = HashMap<String, Any>(keys.size)
+        if (keys.isEmpty()) return result
+        val db = dbHelper.readableDatabase
+        val now = System.currentTimeMillis().toString()
+        keys.chunked(MAX_SQL_ARGS - 2).forEach { chunk ->
+            val sql =
+                "SELECT ${EMDBConstant.KEY_NAME}, ${EMDBConstant.KEY_VALUE}, ${EMDBConstant.KEY_DATA}, ${EMDBConstant.KEY_EXPIRE_AT} FROM ${EMDBConstant.KEY_VALUE_TABLE} " +
+                        "WHERE ${EMDBConstant.KEY_USER_ID} = ? AND $NOT_EXPIRED AND ${EMDBConstant.KEY_NAME} IN (${chunk.joinToString(",") { "?" }})"
+            val args = ArrayList<String>(chunk.size + 2)
+            args.add(userId)
+            args.add(now)
+            args.addAll(chunk)
+            db.rawQuery(sql, args.toTypedArray()).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val value = EMDBValue.withExpire(EMDBValue.read(cursor, 1, 2), cursor.getLong(3)) ?: continue
+                    result[cursor.getString(0)] = value
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * 通用key-value前缀查询 使用范围查询走索引（LIKE默认大小写不敏感无法走索引）
+     * ⚠️ 异常由调用方处理
+     * @param prefix 为空时返回该userid下的所有数据
+     * @return key及其原始类型的值
+     */
+    fun getByPrefix(prefix: String, userId: String = DB_USER_DEFAULT): Map<String, Any> {
+        val result = HashMap<String, Any>()
+        val db = dbHelper.readableDatabase
+        val now = System.currentTimeMillis().toString()
+        val cursor = if (prefix.isEmpty()) {
+            db.rawQuery(SQL_GET_USER, arrayOf(userId, now))
+        } else {
+            db.rawQuery(SQL_GET_PREFIX, arrayOf(prefix, prefix + PREFIX_UPPER_BOUND, userId, now))
+        }
+        cursor.use {
+            while (it.moveToNext()) {
+                val key = it.getString(0)
+                val value = EMDBValue.withExpire(EMDBValue.read(it, 1, 2), it.getLong(3)) ?: continue
+                if (key.startsWith(prefix)) result[key] = value
+            }
+        }
+        return result
+    }
+
+    /**
+     * 分页读取导出数据，按主键递增，每页单独查询，cursor只持有一页
+     * ⚠️ 异常由调用方处理
+     * @param afterId 上一页最后一行的主键，第一页传0
+     * @return 本页最后一行的主键，没有更多数据时返回-1
+     */
+    internal fun exportPage(afterId: Long, limit: Int, consumer: (EMDBBackup.Row) -> Unit): Long {
+        val db = dbHelper.readableDatabase
+        var lastId = -1L
+        db.rawQuery(SQL_EXPORT_PAGE + limit, arrayOf(afterId.toString(), System.currentTimeMillis().toString())).use { cursor ->
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(0)
+                val value = EMDBValue.read(cursor, 3, 4) ?: continue
+                consumer(EMDBBackup.Row(cursor.getString(1), cursor.getString(2), value, cursor.getLong(5)))
+            }
+        }
+        return lastId
+    }
+
+    /**
+     * 导入数据 单事务提交，已存在的key被覆盖
+     */
+    internal fun saveRows(rows: List<EMDBBackup.Row>): Boolean {
+        if (rows.isEmpty()) return true
+        val db: SQLiteDatabase = dbHelper.writableDatabase
+        return try {
+            withWriteStatement(SQL_REPLACE) { textStatement ->
+                withWriteStatement(SQL_REPLACE_DATA) { dataStatement ->
+                    db.beginTransaction()
+                    try {
+                        rows.forEach { row ->
+                            val statement = if (row.value is String) textStatement else dataStatement
+                            statement.bindString(1, row.key)
+                            if (row.value is String) statement.bindString(2, row.value) else bindData(statement, 2, row.value)
+                            statement.bindString(3, row.userId)
+                            statement.bindLong(4, row.expireAt)
+                            statement.executeInsert()
+                        }
+                        db.setTransactionSuccessful()
+                    } finally {
+                        db.endTransaction()
+                    }
+                }
+            }
+            Log.d(TAG, "数据库key_value表导入：size:${rows.size}")
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表导入异常：${e.message}")
+            false
+        }
+    }
+
     /**
      * 通用key-value删除
      */
     fun deleteKeyValue(key: String, userId: String = DB_USER_DEFAULT): Boolean {
-        val db: SQLiteDatabase = dbHelper.writableDatabase
         return try {
-            db.delete(
-                EMDBConstant.KEY_VALUE_TABLE, "${EMDBConstant.KEY_NAME} = ? AND ${EMDBConstant.KEY_USER_ID} = ?",
-                arrayOf(key, userId)
-            )
+            withWriteStatement(SQL_DELETE) { statement ->
+                statement.bindString(1, key)
+                statement.bindString(2, userId)
+                statement.executeUpdateDelete()
+            }
             true
         } catch (e: Exception) {
             Log.e(TAG, "数据库key_value表删除异常：${e.message}")
@@ -86,16 +568,83 @@ class EMDBDao(private val dbHelper: EMDBHelper) {
         }
     }
 
+    /**
+     * 通用key-value批量删除
+     * 单事务内复用同一条预编译语句
+     */
+    fun deleteAll(keys: Collection<String>, userId: String = DB_USER_DEFAULT): Boolean {
+        if (keys.isEmpty()) return true
+        val db: SQLiteDatabase = dbHelper.writableDatabase
+        return try {
+            withWriteStatement(SQL_DELETE) { statement ->
+                db.beginTransaction()
+                try {
+                    keys.forEach { key ->
+                        statement.bindString(1, key)
+                        statement.bindString(2, userId)
+                        statement.executeUpdateDelete()
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表批量删除异常：${e.message}")
+            false
+        }
+    }
+
+    /**
+     * 删除一批已过期的数据
+     * @param limit 单次最多删除的行数，避免长时间占用写锁
+     * @return 被删除的 userId -> key
+     */
+    fun deleteExpired(now: Long, limit: Int): List<Pair<String, String>> {
+        val db: SQLiteDatabase = dbHelper.writableDatabase
+        return try {
+            val ids = ArrayList<Long>()
+            val rows = ArrayList<Pair<String, String>>()
+            db.rawQuery(SQL_GET_EXPIRED + limit, arrayOf(now.toString())).use { cursor ->
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0))
+                    rows.add(cursor.getString(2) to cursor.getString(1))
+                }
+            }
+            if (ids.isEmpty()) return rows
+            withWriteStatement(SQL_DELETE_EXPIRED) { statement ->
+                db.beginTransaction()
+                try {
+                    ids.forEach { id ->
+                        statement.bindLong(1, id)
+                        statement.bindLong(2, now)
+                        statement.executeUpdateDelete()
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+            rows
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库key_value表过期清理异常：${e.message}")
+            emptyList()
+        }
+    }
+
     /**
      * 通用key-value删除所有
      */
     fun clearKeyValue(userId: String? = null): Boolean {
-        val db: SQLiteDatabase = dbHelper.writableDatabase
         return try {
             if (userId == null) {
-                db.delete(EMDBConstant.KEY_VALUE_TABLE, null, null)
+                withWriteStatement(SQL_CLEAR_ALL) { it.executeUpdateDelete() }
             } else {
-                db.delete(EMDBConstant.KEY_VALUE_TABLE, "${EMDBConstant.KEY_USER_ID} = ?", arrayOf(userId))
+                withWriteStatement(SQL_CLEAR_USER) { statement ->
+                    statement.bindString(1, userId)
+                    statement.executeUpdateDelete()
+                }
             }
             true
         } catch (e: Exception) {
@@ -3,21 +3,119 @@ package com.wyz.emlibrary.db
 import android.content.Context
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.util.Log
+import com.wyz.emlibrary.TAG
+import java.io.File
 
-class EMDBHelper(context: Context) : SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+/**
+ * @param walEnabled 是否开启WAL模式（默认开启）
+ * @param name 数据库文件名，分片模式下每个分片一个文件
+ * WAL模式下读写互不阻塞，读操作通过SQLite连接池并发执行
+ */
+class EMDBHelper(
+    context: Context,
+    private val walEnabled: Boolean = true,
+    name: String = DATABASE_NAME
+) : SQLiteOpenHelper(context, name, null, DATABASE_VERSION) {
 
     companion object {
-        private const val DATABASE_NAME = "emlibrary.db"
-        private const val DATABASE_VERSION = 1
+        internal const val DATABASE_NAME = "emlibrary.db"
+        /**
+         * 1：初始版本
+         * 2：新增key_data列，存储类型化的值
+         * 3：新增key_user_id索引
+         * 4：新增key_expire_at过期时间列
+         */
+        private const val DATABASE_VERSION = 4
+
+        /**
+         * 迁移步骤 按版本顺序排列
+         * 新增版本时在末尾追加迁移并修改DATABASE_VERSION
+         */
+        internal val MIGRATIONS = listOf(
+            EMDBMigration(1, 2) { db ->
+                db.execSQL(EMDBConstant.ADD_KEY_DATA_COLUMN)
+            },
+            EMDBMigration(2, 3) { db ->
+                db.execSQL(EMDBConstant.CREATE_INDEX_KEY_USER_ID)
+            },
+            EMDBMigration(3, 4) { db ->
+                db.execSQL(EMDBConstant.ADD_KEY_EXPIRE_AT_COLUMN)
+                db.execSQL(EMDBConstant.CREATE_INDEX_KEY_EXPIRE_AT)
+            }
+        )
+
+        /**
+         * WAL自动checkpoint的页数阈值
+         */
+        private const val WAL_AUTO_CHECKPOINT_PAGES = 1000
+
+        /**
+         * checkpoint后WAL文件保留的最大字节数，超过该大小时主动checkpoint
+         */
+        private const val WAL_SIZE_LIMIT = 4L * 1024 * 1024
+    }
+
+    init {
+        setWriteAheadLoggingEnabled(walEnabled)
+    }
+
+    override fun onConfigure(db: SQLiteDatabase) {
+        super.onConfigure(db)
+        if (walEnabled) {
+            pragma(db, "PRAGMA wal_autocheckpoint=$WAL_AUTO_CHECKPOINT_PAGES")
+            pragma(db, "PRAGMA journal_size_limit=$WAL_SIZE_LIMIT")
+        }
     }
 
     override fun onCreate(db: SQLiteDatabase) {
-        // 创建数据库表
+        // 创建v1数据库表，再依次迁移到最新版本，保证新建和升级的表结构一致
         db.execSQL(EMDBConstant.CREATE_KEY_VALUE_TABLE)
+        migrate(db, 1, DATABASE_VERSION)
     }
 
     override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
         // 在数据库版本更新时执行操作
-        // 可以在这里添加升级数据库的逻辑
+        migrate(db, oldVersion, newVersion)
+    }
+
+    /**
+     * 按顺序执行迁移步骤，失败时抛出异常中止升级
+     * onCreate/onUpgrade本身运行在SQLiteOpenHelper的事务中，所有步骤整体提交：
+     * 任一步骤失败时全部回滚，数据库保持原版本，下次打开时从原版本重新迁移
+     */
+    private fun migrate(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        var version = oldVersion
+        while (version < newVersion) {
+            val migration = MIGRATIONS.firstOrNull { it.startVersion == version && it.endVersion <= newVersion }
+                ?: throw IllegalStateException("缺少数据库迁移：$version -> $newVersion")
+            migration.migrate(db)
+            Log.d(TAG, "数据库迁移完成：${migration.startVersion} -> ${migration.endVersion}")
+            version = migration.endVersion
+        }
+    }
+
+    /**
+     * WAL文件超过WAL_SIZE_LIMIT时主动checkpoint并截断，防止WAL文件无限增长
+     * @param force 忽略文件大小直接checkpoint（关闭数据库前调用）
+     */
+    fun checkpoint(force: Boolean = false) {
+        if (!walEnabled) return
+        try {
+            val db = writableDatabase
+            val walFile = File(db.path + "-wal")
+            if (!force && walFile.length() <= WAL_SIZE_LIMIT) return
+            pragma(db, "PRAGMA wal_checkpoint(TRUNCATE)")
+            Log.d(TAG, "数据库WAL checkpoint完成，WAL大小：${walFile.length()}")
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库WAL checkpoint异常：${e.message}")
+        }
+    }
+
+    /**
+     * 带返回值的PRAGMA需要通过rawQuery执行
+     */
+    private fun pragma(db: SQLiteDatabase, sql: String) {
+        db.rawQuery(sql, null).use { it.moveToFirst() }
     }
 }
\ No newline at end of file
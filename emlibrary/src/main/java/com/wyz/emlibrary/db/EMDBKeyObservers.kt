@@ -0,0 +1,49 @@
+package com.wyz.emlibrary.db
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * 进程内按(userId, key)分发的数据变化监听
+ * 只通知监听了对应key的观察者，无关key的写入不会唤醒观察者
+ */
+internal class EMDBKeyObservers {
+
+    private data class ObserveKey(val userId: String, val key: String)
+
+    private val listeners = ConcurrentHashMap<ObserveKey, CopyOnWriteArrayList<() -> Unit>>()
+
+    fun add(key: String, userId: String, listener: () -> Unit) {
+        listeners.compute(ObserveKey(userId, key)) { _, list ->
+            (list ?: CopyOnWriteArrayList()).apply { add(listener) }
+        }
+    }
+
+    fun remove(key: String, userId: String, listener: () -> Unit) {
+        listeners.computeIfPresent(ObserveKey(userId, key)) { _, list ->
+            list.remove(listener)
+            if (list.isEmpty()) null else list
+        }
+    }
+
+    fun notifyChanged(key: String, userId: String) {
+        if (listeners.isEmpty()) return
+        listeners[ObserveKey(userId, key)]?.forEach { it() }
+    }
+
+    fun notifyChanged(keys: Collection<String>, userId: String) {
+        if (listeners.isEmpty()) return
+        keys.forEach { notifyChanged(it, userId) }
+    }
+
+    /**
+     * 1.通知指定userid下的所有观察者
+     * 2.通知所有观察者
+     */
+    fun notifyCleared(userId: String?) {
+        if (listeners.isEmpty()) return
+        listeners.forEach { (observeKey, list) ->
+            if (userId == null || observeKey.userId == userId) list.forEach { it() }
+        }
+    }
+}
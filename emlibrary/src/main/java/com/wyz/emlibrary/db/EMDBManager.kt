@@ -4,6 +4,28 @@ import android.content.Context
 import android.database.Cursor
 import android.util.Log
 import com.wyz.emlibrary.TAG
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
 
 /**
  * 数据库管理
@@ -11,93 +33,708 @@ import com.wyz.emlibrary.TAG
  * ⚠️ 跨进程必须使用provider调用数据库,不能直接调用此类
  * EMLibrary初始化时自动初始化数据库
  * 可跨进程直接调用存取Boolean、String类型数据
+ * Int/Long/Float/Double/ByteArray按原类型存储（INTEGER/REAL/BLOB），读取时不经过String转换
+ * 可为数据设置过期时间(ttlMillis)，过期后读取返回默认值，后台定时分批清理过期数据
+ * 可通过observe()以Flow监听指定key的变化（仅限当前进程内经过EMDBManager的写入）
+ * 数据库默认开启WAL，读操作不加锁，通过SQLite连接池与写操作并发执行
+ * 写操作按(userId, key)哈希分段加锁，同一key的写入串行化，不同key的写入互不阻塞；只有clearKeyValue持有整表锁
+ * 开启applyAsync后saveValueWithKey、saveBooleanValue写入内存队列立即返回，由后台线程合并后单事务落库
+ * 计数器使用increment()原子自增；高频计数可使用accumulate()在内存中累加，定时合并落库
+ * 多账号场景可在init时指定EMDBShardMode，按userId分到不同的数据库文件，每个文件独立加锁
+ * 存储引擎可在init时通过EMDBBackend切换，默认SQLite；MMAP适合小而频繁读写的值
+ * 可通过setMetricsListener()采集每次操作的锁等待、读写、通知耗时，内置实现见EMDBMetricsRecorder
  */
 object EMDBManager {
-    private lateinit var dbHelper: EMDBHelper
-    private lateinit var dbDao: EMDBDao
+    /**
+     * 数据库分片，默认单文件
+     */
+    private lateinit var shards: EMDBShards
 
     private const val STR_NUM_ONE = "1"
     private const val STR_NUM_ZERO = "0"
 
+    /**
+     * 默认缓存条数
+     */
+    const val DEFAULT_CACHE_SIZE = 512
+
+    /**
+     * 进程内读缓存
+     */
+    private lateinit var cache: EMDBCache
+
+    /**
+     * 按key分发的变化监听
+     */
+    private val keyObservers = EMDBKeyObservers()
+
+    /**
+     * 异步写入合并落库的延迟
+     */
+    private const val APPLY_DELAY_MILLIS = 100L
+
     @Volatile
     var initialized = false
 
     /**
-     * 数据库读写锁
+     * 异步写入模式（类似SharedPreferences.apply）
+     * 开启后saveValueWithKey、saveBooleanValue只写入内存队列，读取可立即读到队列中的值
+     * ⚠️ 进程退出前需调用flush()确保落库
      */
-    private val rwLock = java.util.concurrent.locks.ReentrantReadWriteLock()
-    private val readLock = rwLock.readLock()
-    private val writeLock = rwLock.writeLock()
+    @Volatile
+    var applyAsync = false
+
+    /**
+     * 待落库的写入 userId -> (key -> value)，同一key重复写入只保留最后一次
+     */
+    private val pendingWrites = ConcurrentHashMap<String, ConcurrentHashMap<String, String>>()
+    private val flushScheduled = AtomicBoolean(false)
+    private val writeExecutor: ScheduledExecutorService by lazy {
+        Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "EMDBWriteBehind").apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * 待落库的累加值 userId -> (key -> delta)
+     */
+    private val pendingIncrements = ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicLong>>()
+    private val incrementFlushScheduled = AtomicBoolean(false)
+
+    /**
+     * 累加值合并落库的延迟
+     */
+    private const val ACCUMULATE_DELAY_MILLIS = 1000L
+
+    /**
+     * 过期数据清理：间隔、单批行数、批次间隔、单次最多批数
+     * 分批持有整表锁，避免长时间阻塞其他写操作
+     */
+    private const val SWEEP_INTERVAL_MILLIS = 5 * 60 * 1000L
+    private const val SWEEP_BATCH_SIZE = 200
+    private const val SWEEP_BATCH_PAUSE_MILLIS = 50L
+    private const val SWEEP_MAX_BATCHES = 20
+
+    /**
+     * 导出/导入时单页（单事务）的行数、流缓冲区大小
+     */
+    private const val BACKUP_CHUNK_ROWS = 500
+    private const val BACKUP_BUFFER_SIZE = 32 * 1024
+
+    /**
+     * 每写入多少行检查一次WAL文件大小
+     */
+    private const val CHECKPOINT_WRITE_ROWS = 500
+
+    /**
+     * 初始化、关闭数据库的锁
+     * 数据写入使用各分片自己的分段锁，WAL模式下读操作不加锁
+     */
+    private val lifecycleLock = ReentrantLock()
 
     /**
      * 数据库初始化
+     * @param cacheSize 进程内读缓存的最大条数
+     * @param walEnabled 是否开启WAL模式
+     * @param shardMode 数据库分片方式，默认所有user共用一个数据库文件
+     * @param backend 存储引擎，默认SQLite；切换引擎不会迁移已有数据
      */
-    fun init(context: Context) {
+    fun init(
+        context: Context,
+        cacheSize: Int = DEFAULT_CACHE_SIZE,
+        walEnabled: Boolean = true,
+        shardMode: EMDBShardMode = EMDBShardMode.Single,
+        backend: EMDBBackend = EMDBBackend.SQLITE
+    ) {
         if (initialized) return
-        writeLock.lock()
+        lifecycleLock.lock()
         try {
             if (initialized) return
-            dbHelper = EMDBHelper(context)
-            dbDao = EMDBDao(dbHelper)
+            shards = EMDBShards(context.applicationContext, shardMode, walEnabled, backend)
+            cache = EMDBCache(cacheSize)
             initialized = true
+            writeExecutor.scheduleWithFixedDelay(
+                { sweepExpired() },
+                SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS
+            )
             Log.d(TAG, "EMLibrary 数据库初始化成功")
         } finally {
-            writeLock.unlock()
+            lifecycleLock.unlock()
         }
     }
 
-    private fun getDao(): EMDBDao {
-        return dbDao
+    private fun getStorage(userId: String): EMDBStorage {
+        return shards.of(userId).storage
     }
 
+    /**
+     * 持有(userId, key)对应的分段锁执行，同一key的写入串行化，不同key的写入互不阻塞
+     */
+    private inline fun <T> withKeyLock(userId: String, key: String, block: (EMDBShard) -> T): T {
+        val shard = shards.of(userId)
+        val stripe = shard.stripeOf(userId, key)
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        shard.tableLock.readLock().lock()
+        stripe.lock()
+        EMDBMetrics.mark(EMDBMetrics.Phase.LOCK_WAIT)
+        try {
+            return block(shard)
+        } finally {
+            stripe.unlock()
+            shard.tableLock.readLock().unlock()
+        }
+    }
 
-    fun saveBooleanValue(key: String, value: Boolean, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
-        writeLock.lock()
+    /**
+     * 持有多个key对应的分段锁执行（批量写入），分段锁按下标顺序获取
+     * @param keys (userId, key)，均须位于shard中
+     */
+    private inline fun <T> withKeysLock(shard: EMDBShard, keys: Collection<Pair<String, String>>, block: () -> T): T {
+        val stripes = shard.stripesOf(keys)
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        shard.tableLock.readLock().lock()
+        stripes.forEach { it.lock() }
+        EMDBMetrics.mark(EMDBMetrics.Phase.LOCK_WAIT)
         try {
-            return getDao().saveKeyValue(
-                key,
-                if (value) STR_NUM_ONE else STR_NUM_ZERO,
-                userId
-            )
+            return block()
         } finally {
-            writeLock.unlock()
+            stripes.asReversed().forEach { it.unlock() }
+            shard.tableLock.readLock().unlock()
         }
     }
 
-    fun getBooleanValue(key: String, defaultValue: Boolean, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
-        readLock.lock()
+    /**
+     * 持有分片的整表锁执行，等待该分片所有进行中的写入完成
+     */
+    private inline fun <T> withTableLock(shard: EMDBShard, block: () -> T): T {
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        shard.tableLock.writeLock().lock()
+        EMDBMetrics.mark(EMDBMetrics.Phase.LOCK_WAIT)
         try {
-            val result = getDao().getValueByKey(
-                key,
-                if (defaultValue) STR_NUM_ONE else STR_NUM_ZERO,
-                userId
-            )
-            return result == STR_NUM_ONE
+            return block()
         } finally {
-            readLock.unlock()
+            shard.tableLock.writeLock().unlock()
         }
     }
 
-    fun saveValueWithKey(key: String, value: String, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
-        writeLock.lock()
+    /**
+     * 设置了指标监听时记录本次操作，返回值为false、-1或自增返回null时记为失败
+     * block中不能直接return外层函数，否则无法取得返回值
+     */
+    private inline fun <T> traced(operation: EMDBOperation, keyCount: Int, payload: Any?, crossinline block: () -> T): T {
+        if (!EMDBMetrics.begin(operation, keyCount, payload)) return block()
+        var result: Any? = false
         try {
-            return getDao().saveKeyValue(key, value, userId)
+            return block().also { result = it }
         } finally {
-            writeLock.unlock()
+            EMDBMetrics.end(result)
+        }
+    }
+
+    /**
+     * 指标监听，null时不采集
+     * 回调在调用线程上同步执行，见EMDBMetricsListener
+     */
+    fun setMetricsListener(listener: EMDBMetricsListener?) {
+        EMDBMetrics.listener = listener
+    }
+
+    private fun notifyChanged(key: String, userId: String) {
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        keyObservers.notifyChanged(key, userId)
+        EMDBMetrics.mark(EMDBMetrics.Phase.NOTIFY)
+    }
+
+    private fun notifyChanged(keys: Collection<String>, userId: String) {
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        keyObservers.notifyChanged(keys, userId)
+        EMDBMetrics.mark(EMDBMetrics.Phase.NOTIFY)
+    }
+
+    private fun notifyCleared(userId: String?) {
+        EMDBMetrics.mark(EMDBMetrics.Phase.QUERY)
+        keyObservers.notifyCleared(userId)
+        EMDBMetrics.mark(EMDBMetrics.Phase.NOTIFY)
+    }
+
+    /**
+     * 先读待落库队列和缓存，未命中再读库并填充缓存
+     * @return null key不存在或读取失败；String / Long / Double / ByteArray
+     */
+    private fun readStored(key: String, userId: String): Any? {
+        return traced(EMDBOperation.READ, 1, null) {
+            lookup(key, userId).also { EMDBMetrics.add(0, it) }
+        }
+    }
+
+    private fun lookup(key: String, userId: String): Any? {
+        pendingWrites[userId]?.get(key)?.let { return it }
+        val cached = cache.get(key, userId)
+        if (cached != null) {
+            return if (cached === EMDBCache.ABSENT) null else cached
+        }
+        val readVersion = cache.readVersion()
+        return try {
+            val value = getStorage(userId).getStoredValue(key, userId)
+            cache.putIfUnchanged(key, userId, value, readVersion)
+            EMDBValue.unwrap(value)
+        } catch (e: Exception) {
+            // 读取失败不缓存
+            Log.e(TAG, "数据库读取异常：${e.message}")
+            null
+        }
+    }
+
+    private fun readValue(key: String, userId: String): String? {
+        return EMDBValue.asString(readStored(key, userId))
+    }
+
+    /**
+     * 写入计数，达到阈值后在后台检查该分片的WAL大小并checkpoint
+     */
+    private fun onRowsWritten(shard: EMDBShard, rows: Int) {
+        val count = shard.rowsSinceCheckpoint.addAndGet(rows)
+        if (count < CHECKPOINT_WRITE_ROWS) return
+        // 多个线程同时达到阈值时只有一个负责checkpoint
+        if (!shard.rowsSinceCheckpoint.compareAndSet(count, 0)) return
+        writeExecutor.execute { shard.storage.checkpoint() }
+    }
+
+    /**
+     * @param ttlMillis 有效期（毫秒），<=0表示永不过期
+     * @return 过期时间戳，0表示永不过期
+     */
+    private fun expireAtOf(ttlMillis: Long): Long {
+        return if (ttlMillis > 0) System.currentTimeMillis() + ttlMillis else 0L
+    }
+
+    /**
+     * 写库后同步缓存，写失败时丢弃缓存以免与数据库不一致
+     * ⚠️ 需持有(userId, key)对应的分段锁
+     */
+    private fun saveAndCache(shard: EMDBShard, key: String, value: String, userId: String, expireAt: Long = 0L): Boolean {
+        // 同步写入覆盖队列中尚未落库的旧值
+        pendingWrites[userId]?.remove(key)
+        val result = shard.storage.saveKeyValue(key, value, userId, expireAt)
+        if (result) cache.put(key, userId, EMDBValue.withExpire(value, expireAt)) else cache.remove(key, userId)
+        onRowsWritten(shard, 1)
+        if (result) notifyChanged(key, userId)
+        return result
+    }
+
+    /**
+     * 类型化写入 同步落库
+     */
+    private fun saveTyped(key: String, value: Any, userId: String, expireAt: Long = 0L): Boolean {
+        return traced(EMDBOperation.WRITE, 1, value) {
+            withKeyLock(userId, key) { shard ->
+                pendingWrites[userId]?.remove(key)
+                val result = shard.storage.saveTypedValue(key, value, userId, expireAt)
+                if (result) cache.put(key, userId, EMDBValue.withExpire(value, expireAt)) else cache.remove(key, userId)
+                onRowsWritten(shard, 1)
+                if (result) notifyChanged(key, userId)
+                result
+            }
+        }
+    }
+
+    /**
+     * 写入异步队列 合并同一key的重复写入并延迟落库
+     */
+    private fun enqueueWrite(key: String, value: String, userId: String): Boolean {
+        pendingWrites.getOrPut(userId) { ConcurrentHashMap() }[key] = value
+        // 队列中的值立即可读，直接通知
+        notifyChanged(key, userId)
+        if (flushScheduled.compareAndSet(false, true)) {
+            writeExecutor.schedule({
+                flushScheduled.set(false)
+                flush()
+            }, APPLY_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+        }
+        return true
+    }
+
+    /**
+     * 将异步队列中的写入单事务落库
+     * 可在进程退出、页面销毁等场景主动调用
+     */
+    fun flush(): Boolean {
+        if (!initialized) return false
+        return traced(EMDBOperation.FLUSH, 0, null) {
+            val incrementResult = flushIncrements()
+            // 按分片分组，每个分片单事务落库
+            val shardKeys = HashMap<EMDBShard, ArrayList<Pair<String, String>>>()
+            pendingWrites.forEach { (userId, values) ->
+                if (values.isEmpty()) return@forEach
+                val keys = shardKeys.getOrPut(shards.of(userId)) { ArrayList() }
+                values.keys.forEach { keys.add(userId to it) }
+            }
+            var result = incrementResult
+            shardKeys.forEach { (shard, keys) ->
+                withKeysLock(shard, keys) {
+                    // 持有分段锁后再取值：加锁前被删除、清空或同步写入覆盖的key已不在队列中，跳过
+                    val snapshot = HashMap<String, HashMap<String, String>>()
+                    keys.forEach { (userId, key) ->
+                        val value = pendingWrites[userId]?.get(key) ?: return@forEach
+                        snapshot.getOrPut(userId) { HashMap() }[key] = value
+                    }
+                    if (snapshot.isEmpty()) return@withKeysLock
+                    val count = snapshot.values.sumOf { it.size }
+                    EMDBMetrics.add(count, snapshot.values)
+                    val shardResult = shard.storage.saveAllUsers(snapshot)
+                    onRowsWritten(shard, count)
+                    snapshot.forEach { (userId, values) ->
+                        values.forEach { (key, value) ->
+                            if (shardResult) {
+                                cache.put(key, userId, value)
+                                // 只移除已落库的值，flush期间的新写入保留在队列中
+                                pendingWrites[userId]?.remove(key, value)
+                            } else {
+                                cache.remove(key, userId)
+                            }
+                        }
+                    }
+                    if (!shardResult) result = false
+                }
+            }
+            result
+        }
+    }
+
+    /**
+     * 累加值落库，每个key一次自增
+     * @return false 有key落库失败（保留在内存中等待下次）
+     */
+    private fun flushIncrements(): Boolean {
+        return traced(EMDBOperation.FLUSH, 0, null) {
+            var result = true
+            pendingIncrements.forEach { (userId, counters) ->
+                counters.forEach { (key, counter) ->
+                    withKeyLock(userId, key) { shard ->
+                        // 加锁前已被删除或清空的计数器不再落库
+                        if (pendingIncrements[userId]?.get(key) !== counter) return@withKeyLock
+                        val delta = counter.getAndSet(0)
+                        if (delta != 0L) EMDBMetrics.add(1, null)
+                        if (delta != 0L && incrementLocked(shard, key, delta, userId) == null) {
+                            counter.addAndGet(delta)
+                            result = false
+                        }
+                    }
+                }
+            }
+            result
+        }
+    }
+
+    /**
+     * 自增落库并同步缓存
+     * ⚠️ 需持有(userId, key)对应的分段锁
+     */
+    private fun incrementLocked(shard: EMDBShard, key: String, delta: Long, userId: String): Long? {
+        // 队列中尚未落库的值作为自增的基础
+        pendingWrites[userId]?.remove(key)?.let { shard.storage.saveKeyValue(key, it, userId) }
+        val result = shard.storage.increment(key, delta, userId)
+        if (result != null) cache.put(key, userId, result) else cache.remove(key, userId)
+        onRowsWritten(shard, 1)
+        if (result != null) notifyChanged(key, userId)
+        return result
+    }
+
+    /**
+     * 原子自增（同步落库），原值不存在、已过期或不是数字时视为0，自增后按Long存储
+     * 会合并该key在accumulate()中尚未落库的累加值
+     * 跨进程时通过EMDBKVProvider.METHOD_INCREMENT调用，避免get + put两次IPC之间的竞争
+     * @return 自增后的值，null 写入失败
+     */
+    fun increment(key: String, delta: Long = 1L, userId: String = EMDBDao.DB_USER_DEFAULT): Long? {
+        return traced(EMDBOperation.INCREMENT, 1, delta) {
+            withKeyLock(userId, key) { shard ->
+                val accumulated = pendingIncrements[userId]?.get(key)?.getAndSet(0) ?: 0L
+                val result = incrementLocked(shard, key, delta + accumulated, userId)
+                if (result == null && accumulated != 0L) {
+                    pendingIncrements[userId]?.get(key)?.addAndGet(accumulated)
+                }
+                result
+            }
+        }
+    }
+
+    /**
+     * 高频计数：只在内存中累加，ACCUMULATE_DELAY_MILLIS后合并为每个key一次自增落库
+     * 累加值在落库前不可读，需要立即可见时调用increment()或flush()
+     * ⚠️ 进程退出前需调用flush()确保落库
+     */
+    fun accumulate(key: String, delta: Long = 1L, userId: String = EMDBDao.DB_USER_DEFAULT) {
+        if (delta == 0L) return
+        pendingIncrements.getOrPut(userId) { ConcurrentHashMap() }
+            .getOrPut(key) { AtomicLong() }
+            .addAndGet(delta)
+        if (incrementFlushScheduled.compareAndSet(false, true)) {
+            writeExecutor.schedule({
+                incrementFlushScheduled.set(false)
+                flushIncrements()
+            }, ACCUMULATE_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * 分批删除已打开分片中已过期的数据并移出缓存
+     * 未打开的分片不清理（读取时会过滤过期数据），打开后由下次清理删除，避免定时任务打开所有user的数据库文件
+     * 每批单独持有分片的整表锁（删除的key事先未知），批次之间让出；每批记为一次SWEEP操作
+     * @return 删除的行数
+     */
+    fun sweepExpired(): Int {
+        if (!initialized) return 0
+        var total = 0
+        shards.opened().toList().forEach { shard ->
+            for (batch in 0 until SWEEP_MAX_BATCHES) {
+                val rows = traced(EMDBOperation.SWEEP, 0, null) {
+                    withTableLock(shard) {
+                        if (!initialized) return@withTableLock emptyList()
+                        shard.storage.deleteExpired(System.currentTimeMillis(), SWEEP_BATCH_SIZE).onEach { (userId, key) ->
+                            cache.remove(key, userId)
+                            notifyChanged(key, userId)
+                        }
+                    }.also { EMDBMetrics.add(it.size, null) }
+                }
+                if (!initialized) return total
+                total += rows.size
+                if (rows.size < SWEEP_BATCH_SIZE) break
+                Thread.sleep(SWEEP_BATCH_PAUSE_MILLIS)
+            }
+        }
+        if (total > 0) Log.d(TAG, "数据库过期数据清理：$total")
+        return total
+    }
+
+    /**
+     * 监听指定key的值变化
+     * 订阅时先发送当前值，之后仅在该key被写入、删除、清空、过期清理时重新读取并发送
+     * 连续多次变化会被合并，只读取最新值；值未变化时不重复发送
+     * ⚠️ 只能监听当前进程内经过EMDBManager的写入，跨进程请使用EMKVObserver
+     *
+     * lifecycleScope.launch {
+     *     EMDBManager.observe("token").collect { value ->
+     *
+     *     }
+     * }
+     *
+     * @param dispatcher 读取数据库所在的调度器
+     * @return key不存在时发送null
+     */
+    fun observe(
+        key: String,
+        userId: String = EMDBDao.DB_USER_DEFAULT,
+        dispatcher: CoroutineDispatcher = Dispatchers.IO
+    ): Flow<String?> {
+        return callbackFlow {
+            val listener: () -> Unit = { trySend(Unit) }
+            keyObservers.add(key, userId, listener)
+            // 首次订阅读取当前值
+            trySend(Unit)
+            awaitClose { keyObservers.remove(key, userId, listener) }
+        }
+            .conflate()
+            .map { readValue(key, userId) }
+            .distinctUntilChanged()
+            .flowOn(dispatcher)
+    }
+
+    /**
+     * 缓存命中统计
+     */
+    fun getCacheStats(): EMDBCacheStats {
+        return cache.stats()
+    }
+
+    fun saveBooleanValue(key: String, value: Boolean, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        if (applyAsync) return enqueueWrite(key, if (value) STR_NUM_ONE else STR_NUM_ZERO, userId)
+        val stored = if (value) STR_NUM_ONE else STR_NUM_ZERO
+        return traced(EMDBOperation.WRITE, 1, stored) {
+            withKeyLock(userId, key) { shard -> saveAndCache(shard, key, stored, userId) }
+        }
+    }
+
+    fun getBooleanValue(key: String, defaultValue: Boolean, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        val result = readValue(key, userId) ?: return defaultValue
+        return result == STR_NUM_ONE
+    }
+
+    /**
+     * @param ttlMillis 有效期（毫秒），<=0表示永不过期；设置了有效期的写入不走异步队列
+     */
+    fun saveValueWithKey(
+        key: String,
+        value: String,
+        userId: String = EMDBDao.DB_USER_DEFAULT,
+        ttlMillis: Long = 0L
+    ): Boolean {
+        if (applyAsync && ttlMillis <= 0) return enqueueWrite(key, value, userId)
+        return traced(EMDBOperation.WRITE, 1, value) {
+            withKeyLock(userId, key) { shard -> saveAndCache(shard, key, value, userId, expireAtOf(ttlMillis)) }
         }
     }
 
     fun getCursorByKey(key: String, userId: String = EMDBDao.DB_USER_DEFAULT): Cursor? {
         // cursor 自己已经处理了并发问题 无需加锁
-        return getDao().getCursorByKey(key, userId)
+        // ⚠️ 直接读库，不包含异步队列中尚未落库的数据
+        return getStorage(userId).getCursorByKey(key, userId)
     }
 
     fun getValueByKey(key: String, defaultValue: String = "", userId: String = EMDBDao.DB_USER_DEFAULT): String {
-        readLock.lock()
-        try {
-            return getDao().getValueByKey(key, defaultValue, userId)
-        } finally {
-            readLock.unlock()
+        return readValue(key, userId) ?: defaultValue
+    }
+
+    // =============================== 类型化存取 ===============================
+
+    fun saveInt(key: String, value: Int, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return saveTyped(key, value.toLong(), userId)
+    }
+
+    fun getInt(key: String, defaultValue: Int = 0, userId: String = EMDBDao.DB_USER_DEFAULT): Int {
+        return EMDBValue.asLong(readStored(key, userId))?.toInt() ?: defaultValue
+    }
+
+    fun saveLong(key: String, value: Long, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return saveTyped(key, value, userId)
+    }
+
+    fun getLong(key: String, defaultValue: Long = 0L, userId: String = EMDBDao.DB_USER_DEFAULT): Long {
+        return EMDBValue.asLong(readStored(key, userId)) ?: defaultValue
+    }
+
+    fun saveFloat(key: String, value: Float, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return saveTyped(key, value.toDouble(), userId)
+    }
+
+    fun getFloat(key: String, defaultValue: Float = 0f, userId: String = EMDBDao.DB_USER_DEFAULT): Float {
+        return EMDBValue.asDouble(readStored(key, userId))?.toFloat() ?: defaultValue
+    }
+
+    fun saveDouble(key: String, value: Double, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return saveTyped(key, value, userId)
+    }
+
+    fun getDouble(key: String, defaultValue: Double = 0.0, userId: String = EMDBDao.DB_USER_DEFAULT): Double {
+        return EMDBValue.asDouble(readStored(key, userId)) ?: defaultValue
+    }
+
+    /**
+     * 字节数组按BLOB存储，不做Base64转换
+     */
+    fun saveBytes(
+        key: String,
+        value: ByteArray,
+        userId: String = EMDBDao.DB_USER_DEFAULT,
+        ttlMillis: Long = 0L
+    ): Boolean {
+        return saveTyped(key, value.copyOf(), userId, expireAtOf(ttlMillis))
+    }
+
+    /**
+     * @return 返回副本，修改不影响缓存
+     */
+    fun getBytes(key: String, userId: String = EMDBDao.DB_USER_DEFAULT): ByteArray? {
+        return EMDBValue.asBytes(readStored(key, userId))?.copyOf()
+    }
+
+    /**
+     * 批量存储 单事务提交
+     */
+    fun saveAll(values: Map<String, String>, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return traced(EMDBOperation.WRITE_BATCH, values.size, values) {
+            val shard = shards.of(userId)
+            withKeysLock(shard, values.keys.map { userId to it }) {
+                pendingWrites[userId]?.let { pending -> values.keys.forEach { pending.remove(it) } }
+                val result = shard.storage.saveAll(values, userId)
+                onRowsWritten(shard, values.size)
+                values.forEach { (key, value) ->
+                    if (result) cache.put(key, userId, value) else cache.remove(key, userId)
+                }
+                if (result) notifyChanged(values.keys, userId)
+                result
+            }
+        }
+    }
+
+    /**
+     * 批量删除指定userid下的key 单事务提交
+     */
+    fun deleteAll(keys: Collection<String>, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return traced(EMDBOperation.DELETE, keys.size, null) {
+            val shard = shards.of(userId)
+            withKeysLock(shard, keys.map { userId to it }) {
+                pendingWrites[userId]?.let { pending -> keys.forEach { pending.remove(it) } }
+                pendingIncrements[userId]?.let { pending -> keys.forEach { pending.remove(it) } }
+                val result = shard.storage.deleteAll(keys, userId)
+                onRowsWritten(shard, keys.size)
+                keys.forEach { key ->
+                    if (result) cache.put(key, userId, null) else cache.remove(key, userId)
+                }
+                if (result) notifyChanged(keys, userId)
+                result
+            }
+        }
+    }
+
+    /**
+     * 批量读取 缓存未命中的key合并为一次查询
+     * @return 存在的key及其值，不存在的key及ByteArray类型的值不在结果中
+     */
+    fun getValues(keys: Collection<String>, userId: String = EMDBDao.DB_USER_DEFAULT): Map<String, String> {
+        return traced(EMDBOperation.READ_BATCH, keys.size, null) {
+            val result = HashMap<String, String>(keys.size)
+            val missKeys = ArrayList<String>()
+            val pending = pendingWrites[userId]
+            keys.forEach { key ->
+                val pendingValue = pending?.get(key)
+                if (pendingValue != null) {
+                    result[key] = pendingValue
+                    return@forEach
+                }
+                val cached = cache.get(key, userId)
+                when {
+                    cached == null -> missKeys.add(key)
+                    cached !== EMDBCache.ABSENT -> EMDBValue.asString(cached)?.let { result[key] = it }
+                }
+            }
+            if (missKeys.isNotEmpty()) {
+                val readVersion = cache.readVersion()
+                try {
+                    val values = getStorage(userId).getValues(missKeys, userId)
+                    missKeys.forEach { key -> cache.putIfUnchanged(key, userId, values[key], readVersion) }
+                    values.forEach { (key, value) -> EMDBValue.asString(EMDBValue.unwrap(value))?.let { result[key] = it } }
+                } catch (e: Exception) {
+                    Log.e(TAG, "数据库批量读取异常：${e.message}")
+                }
+            }
+            EMDBMetrics.add(0, result)
+            result
+        }
+    }
+
+    /**
+     * 前缀查询 一次查询返回指定userid下以prefix开头的所有数据
+     * @param prefix 为空时返回该userid下的所有数据
+     */
+    fun getByPrefix(prefix: String, userId: String = EMDBDao.DB_USER_DEFAULT): Map<String, String> {
+        return traced(EMDBOperation.READ_BATCH, 0, null) {
+            val readVersion = cache.readVersion()
+            try {
+                val values = HashMap<String, String>()
+                getStorage(userId).getByPrefix(prefix, userId).forEach { (key, value) ->
+                    cache.putIfUnchanged(key, userId, value, readVersion)
+                    EMDBValue.asString(EMDBValue.unwrap(value))?.let { values[key] = it }
+                }
+                pendingWrites[userId]?.forEach { (key, value) ->
+                    if (key.startsWith(prefix)) values[key] = value
+                }
+                EMDBMetrics.add(values.size, values)
+                values
+            } catch (e: Exception) {
+                Log.e(TAG, "数据库前缀查询异常：${e.message}")
+                emptyMap()
+            }
         }
     }
 
@@ -105,60 +742,247 @@ object EMDBManager {
      * 删除指定userid下的key
      */
     fun deleteKeyValue(key: String, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
-        writeLock.lock()
-        try {
-            return getDao().deleteKeyValue(key, userId)
-        } finally {
-            writeLock.unlock()
+        return traced(EMDBOperation.DELETE, 1, null) {
+            withKeyLock(userId, key) { shard ->
+                pendingWrites[userId]?.remove(key)
+                pendingIncrements[userId]?.remove(key)
+                val result = shard.storage.deleteKeyValue(key, userId)
+                if (result) cache.put(key, userId, null) else cache.remove(key, userId)
+                if (result) notifyChanged(key, userId)
+                result
+            }
         }
     }
 
     /**
-     * 1.清空指定userid下的数据
-     * 2.清空所有数据
+     * 1.清空指定userid下的数据：PerUser模式下分片未打开时直接删除该user的文件，否则在整表锁内DELETE
+     * 2.清空所有数据：未打开的分片直接删除文件，已打开的分片逐个清空
+     * 唯一持有整表锁的写操作，等待分片中所有进行中的单key写入完成后执行
      */
     fun clearKeyValue(userId: String? = null): Boolean {
-        writeLock.lock()
-        try {
-            return getDao().clearKeyValue(userId)
-        } finally {
-            writeLock.unlock()
+        return traced(EMDBOperation.CLEAR, 0, null) {
+            if (userId == null) {
+                // 有待落库数据的user先打开分片，使其队列在整表锁内清除
+                (pendingWrites.keys + pendingIncrements.keys).forEach { shards.of(it) }
+                var result = shards.deleteUnopened()
+                shards.opened().toList().forEach { shard -> if (!clearShard(shard, null)) result = false }
+                cache.clear(null)
+                if (result) notifyCleared(null)
+                result
+            } else {
+                val deleted = shards.deleteUnopened(userId) {
+                    pendingWrites[userId]?.clear()
+                    pendingIncrements.remove(userId)
+                }
+                val result = deleted ?: clearShard(shards.of(userId), userId)
+                cache.clear(userId)
+                if (result) notifyCleared(userId)
+                result
+            }
+        }
+    }
+
+    /**
+     * 在整表锁内清除队列中尚未落库的数据再清空存储，flush、increment在分段锁内读取队列，不会写回已清除的值
+     * 分片实例保留（不删除文件），无锁读取的线程仍可安全使用
+     * @param userId 为null时清空整个分片
+     */
+    private fun clearShard(shard: EMDBShard, userId: String?): Boolean {
+        withTableLock(shard) {
+            if (userId == null) {
+                pendingWrites.forEach { (id, values) -> if (shards.contains(shard, id)) values.clear() }
+                pendingIncrements.keys.removeAll { shards.contains(shard, it) }
+            } else {
+                pendingWrites[userId]?.clear()
+                pendingIncrements.remove(userId)
+            }
+            return shard.storage.clearKeyValue(userId)
+        }
+    }
+
+    /**
+     * 导出所有未过期的数据到output（EMDBBackup格式），按主键分页读取，内存占用与数据量无关
+     * 导出前先落库异步队列；分页之间不加锁，导出期间的写入可能部分包含在结果中
+     * ⚠️ 不会关闭output
+     * @return 导出的行数，-1 导出失败
+     */
+    fun exportTo(output: OutputStream): Int {
+        if (!initialized) return -1
+        flush()
+        return traced(EMDBOperation.EXPORT, 0, null) {
+            try {
+                val out = DataOutputStream(BufferedOutputStream(output, BACKUP_BUFFER_SIZE))
+                EMDBBackup.writeHeader(out)
+                var count = 0
+                shards.all().forEach { shard ->
+                    var lastId = 0L
+                    while (true) {
+                        lastId = shard.storage.exportPage(lastId, BACKUP_CHUNK_ROWS) { row ->
+                            EMDBBackup.writeRow(out, row)
+                            EMDBMetrics.add(1, row.value)
+                            count++
+                        }
+                        if (lastId < 0) break
+                    }
+                }
+                EMDBBackup.writeEnd(out)
+                out.flush()
+                Log.d(TAG, "数据导出完成：$count")
+                count
+            } catch (e: Exception) {
+                Log.e(TAG, "数据导出异常：${e.message}")
+                -1
+            }
+        }
+    }
+
+    /**
+     * 从input导入exportTo()导出的数据，已存在的key被覆盖，已过期的行跳过
+     * 每BACKUP_CHUNK_ROWS行一个事务，事务之间释放分段锁；中途失败时已提交的部分保留
+     * ⚠️ 不会关闭input
+     * @return 导入的行数，-1 导入失败
+     */
+    fun importFrom(input: InputStream): Int {
+        if (!initialized) return -1
+        return traced(EMDBOperation.IMPORT, 0, null) {
+            try {
+                val inp = DataInputStream(BufferedInputStream(input, BACKUP_BUFFER_SIZE))
+                EMDBBackup.readHeader(inp)
+                var count = 0
+                val chunk = ArrayList<EMDBBackup.Row>(BACKUP_CHUNK_ROWS)
+                while (true) {
+                    val row = EMDBBackup.readRow(inp)
+                    if (row != null) {
+                        if (row.expireAt > 0 && row.expireAt <= System.currentTimeMillis()) continue
+                        chunk.add(row)
+                        EMDBMetrics.add(1, row.value)
+                        if (chunk.size < BACKUP_CHUNK_ROWS) continue
+                    }
+                    if (!saveImportChunk(chunk)) return@traced -1
+                    count += chunk.size
+                    chunk.clear()
+                    if (row == null) break
+                }
+                Log.d(TAG, "数据导入完成：$count")
+                count
+            } catch (e: Exception) {
+                Log.e(TAG, "数据导入异常：${e.message}")
+                -1
+            }
+        }
+    }
+
+    private fun saveImportChunk(rows: List<EMDBBackup.Row>): Boolean {
+        var result = true
+        rows.groupBy { shards.of(it.userId) }.forEach { (shard, shardRows) ->
+            withKeysLock(shard, shardRows.map { it.userId to it.key }) {
+                shardRows.forEach {
+                    pendingWrites[it.userId]?.remove(it.key)
+                    pendingIncrements[it.userId]?.remove(it.key)
+                }
+                val shardResult = shard.storage.saveRows(shardRows)
+                onRowsWritten(shard, shardRows.size)
+                shardRows.forEach { cache.remove(it.key, it.userId) }
+                if (shardResult) {
+                    shardRows.groupBy({ it.userId }, { it.key }).forEach { (userId, keys) ->
+                        notifyChanged(keys, userId)
+                    }
+                } else {
+                    result = false
+                }
+            }
         }
+        return result
     }
 
     /**
      * 关闭数据库
      */
     fun close() {
-        writeLock.lock()
+        lifecycleLock.lock()
         try {
             if (initialized) {
-                dbHelper.close()
-                initialized = false
+                flush()
+                // 等待各分片正在进行的写入完成
+                val opened = shards.opened().toList()
+                opened.forEach { it.tableLock.writeLock().lock() }
+                try {
+                    shards.closeAll()
+                    cache.clear()
+                    initialized = false
+                } finally {
+                    opened.forEach { it.tableLock.writeLock().unlock() }
+                }
                 Log.d(TAG, "关闭数据库")
             }
         } finally {
-            writeLock.unlock()
+            lifecycleLock.unlock()
         }
     }
 
     // =============================== Provider调用 ===============================
 
+    /**
+     * 比较并设置：仅当当前值等于expected时写入newValue（同步落库）
+     * 跨进程时通过EMDBKVProvider.METHOD_COMPARE_AND_SET调用，比较和写入在Provider进程内一次完成
+     * @param expected 为null表示要求key不存在；为""时与getValueByKey的默认值一致，值为""或key不存在都视为匹配
+     * @return true 写入成功 false 当前值不符或写入失败
+     */
+    fun compareAndSet(
+        key: String,
+        expected: String?,
+        newValue: String,
+        userId: String = EMDBDao.DB_USER_DEFAULT
+    ): Boolean {
+        return traced(EMDBOperation.COMPARE_AND_SET, 1, newValue) {
+            withKeyLock(userId, key) { shard ->
+                // 队列中尚未落库的值即为当前值，直接在内存中比较
+                val pending = pendingWrites[userId]?.get(key)
+                if (pending != null) {
+                    if (pending != expected) return@withKeyLock false
+                    return@withKeyLock saveAndCache(shard, key, newValue, userId)
+                }
+                val result = shard.storage.compareAndSet(key, expected, newValue, userId)
+                if (!result) return@withKeyLock false
+                cache.put(key, userId, newValue)
+                onRowsWritten(shard, 1)
+                notifyChanged(key, userId)
+                true
+            }
+        }
+    }
+
     /**
      * 检查新旧值并更新
+     * 缓存命中时直接在内存中比较，否则交给数据库条件写入（不再先查询旧值）
      * @return 1 更新成功 0 无需更新 -1 更新失败
      */
     internal fun providerCheckSave(userId: String, key: String, value: String): Int {
-        writeLock.lock()
-        try {
-            // 读取旧值
-            val oldValue = getDao().getValueByKey(key, "", userId)
-            if (oldValue == value) return 0
-            // 更新DB
-            val result =  getDao().saveKeyValue(key, value, userId)
-            return if (result) 1 else -1
-        } finally {
-            writeLock.unlock()
+        return traced(EMDBOperation.WRITE, 1, value) {
+            withKeyLock(userId, key) { shard ->
+                val pending = pendingWrites[userId]?.get(key)
+                if (pending == value) return@withKeyLock 0
+                if (pending == null) {
+                    val cached = cache.get(key, userId)
+                    val oldValue = if (cached === EMDBCache.ABSENT) "" else EMDBValue.asString(cached)
+                    if (oldValue == value) return@withKeyLock 0
+                }
+                // 同步写入覆盖队列中尚未落库的旧值
+                val hadPending = pendingWrites[userId]?.remove(key) != null
+                var result = shard.storage.saveIfChanged(key, value, userId)
+                if (result == -1) {
+                    cache.remove(key, userId)
+                    return@withKeyLock -1
+                }
+                // 队列中的旧值被覆盖，即使数据库未变化，对外可见的值也变了
+                if (hadPending) result = 1
+                if (result == 1) {
+                    cache.put(key, userId, value)
+                    onRowsWritten(shard, 1)
+                    notifyChanged(key, userId)
+                }
+                result
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+package com.wyz.emlibrary.db
+
+import android.util.Log
+import com.wyz.emlibrary.TAG
+
+/**
+ * EMDBManager的操作类型，每次公开方法调用记为一次操作
+ */
+enum class EMDBOperation {
+    READ,
+    READ_BATCH,
+    WRITE,
+    WRITE_BATCH,
+    DELETE,
+    CLEAR,
+    INCREMENT,
+    COMPARE_AND_SET,
+    FLUSH,
+    SWEEP,
+    EXPORT,
+    IMPORT
+}
+
+/**
+ * 单次操作的耗时拆分
+ * @param lockWaitNanos 等待分段锁/整表锁的耗时
+ * @param queryNanos 读写存储引擎及维护缓存的耗时
+ * @param notifyNanos 分发进程内key变化监听的耗时
+ * @param keyCount 涉及的key数量
+ * @param payloadBytes 写入或读出的值的大小（字符串按UTF-8计算）
+ * @param success 返回值为false、-1或自增返回null时记为失败，compareAndSet的当前值不符也计入失败
+ */
+class EMDBOpSample(
+    val operation: EMDBOperation,
+    val lockWaitNanos: Long,
+    val queryNanos: Long,
+    val notifyNanos: Long,
+    val keyCount: Int,
+    val payloadBytes: Long,
+    val success: Boolean
+) {
+    val totalNanos: Long
+        get() = lockWaitNanos + queryNanos + notifyNanos
+}
+
+/**
+ * 数据库指标监听，通过EMDBManager.setMetricsListener()设置
+ * 回调在调用EMDBManager的线程上同步执行（可能持有锁），实现需线程安全且尽量轻量
+ * 内置实现见EMDBMetricsRecorder
+ */
+interface EMDBMetricsListener {
+
+    fun onOperation(sample: EMDBOpSample)
+
+    /**
+     * EMDBKVProvider被调用（跨进程访问）
+     * @param method call()的方法名，或query/insert/update/delete/openFile
+     * @param durationNanos Provider进程内的处理耗时，不含IPC
+     */
+    fun onProviderCall(method: String, durationNanos: Long) {}
+}
+
+/**
+ * 采集调度：设置了监听时才计时，未设置时只有一次volatile读
+ * 当前线程的操作状态保存在ThreadLocal中，嵌套调用（如close中的flush）只记录最外层操作
+ * 耗时按阶段打点：mark(phase)将距上次打点的时间计入phase，操作结束时剩余时间计入QUERY
+ */
+internal object EMDBMetrics {
+
+    enum class Phase { LOCK_WAIT, QUERY, NOTIFY }
+
+    private class Trace {
+        var active = false
+        lateinit var operation: EMDBOperation
+        var last = 0L
+        var lockWait = 0L
+        var query = 0L
+        var notify = 0L
+        var keyCount = 0
+        var payloadBytes = 0L
+    }
+
+    @Volatile
+    var listener: EMDBMetricsListener? = null
+
+    private val traces = object : ThreadLocal<Trace>() {
+        override fun initialValue(): Trace = Trace()
+    }
+
+    /**
+     * @param payload 用于计算payloadBytes，仅在采集时计算
+     * @return true 当前调用是最外层操作，需调用end()
+     */
+    fun begin(operation: EMDBOperation, keyCount: Int, payload: Any?): Boolean {
+        if (listener == null) return false
+        val trace = traces.get()!!
+        if (trace.active) return false
+        trace.active = true
+        trace.operation = operation
+        trace.lockWait = 0L
+        trace.query = 0L
+        trace.notify = 0L
+        trace.keyCount = keyCount
+        trace.payloadBytes = sizeOf(payload)
+        trace.last = System.nanoTime()
+        return true
+    }
+
+    fun mark(phase: Phase) {
+        if (listener == null) return
+        val trace = traces.get()!!
+        if (!trace.active) return
+        val now = System.nanoTime()
+        val elapsed = now - trace.last
+        trace.last = now
+        when (phase) {
+            Phase.LOCK_WAIT -> trace.lockWait += elapsed
+            Phase.QUERY -> trace.query += elapsed
+            Phase.NOTIFY -> trace.notify += elapsed
+        }
+    }
+
+    /**
+     * 读取、批量落库等操作的key数量和数据大小在执行后才知道
+     */
+    fun add(keyCount: Int, payload: Any?) {
+        if (listener == null) return
+        val trace = traces.get()!!
+        if (!trace.active) return
+        trace.keyCount += keyCount
+        trace.payloadBytes += sizeOf(payload)
+    }
+
+    fun end(result: Any?) {
+        val trace = traces.get()!!
+        if (!trace.active) return
+        mark(Phase.QUERY)
+        trace.active = false
+        val listener = listener ?: return
+        val failed = result == false || result == -1 ||
+            (result == null && trace.operation == EMDBOperation.INCREMENT)
+        dispatch(listener) {
+            onOperation(
+                EMDBOpSample(
+                    trace.operation, trace.lockWait, trace.query, trace.notify,
+                    trace.keyCount, trace.payloadBytes, !failed
+                )
+            )
+        }
+    }
+
+    fun onProviderCall(method: String, durationNanos: Long) {
+        val listener = listener ?: return
+        dispatch(listener) { onProviderCall(method, durationNanos) }
+    }
+
+    /**
+     * 监听异常不能影响数据库操作
+     */
+    private inline fun dispatch(listener: EMDBMetricsListener, block: EMDBMetricsListener.() -> Unit) {
+        try {
+            listener.block()
+        } catch (e: Exception) {
+            Log.e(TAG, "数据库指标监听异常：${e.message}")
+        }
+    }
+
+    private fun sizeOf(value: Any?): Long {
+        return when (value) {
+            null -> 0L
+            is String -> utf8Length(value)
+            is ByteArray -> value.size.toLong()
+            is Long, is Double -> 8L
+            is Map<*, *> -> value.entries.sumOf { sizeOf(it.key) + sizeOf(it.value) }
+            is Collection<*> -> value.sumOf { sizeOf(it) }
+            is EMDBValue.Expiring -> sizeOf(value.value)
+            else -> 0L
+        }
+    }
+
+    private fun utf8Length(value: String): Long {
+        var length = 0L
+        var i = 0
+        while (i < value.length) {
+            val c = value[i]
+            length += when {
+                c.code < 0x80 -> 1
+                c.code < 0x800 -> 2
+                Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> {
+                    i++
+                    4
+                }
+                else -> 3
+            }
+            i++
+        }
+        return length
+    }
+}
@@ -0,0 +1,186 @@
+package com.wyz.emlibrary.db
+
+import android.util.Log
+import com.wyz.emlibrary.TAG
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 内置指标记录：按操作类型累计次数、失败数、key数、数据大小，
+ * 并用环形缓冲区保存最近capacity次操作的耗时，读取时计算分位数
+ *
+ * val recorder = EMDBMetricsRecorder()
+ * EMDBManager.setMetricsListener(recorder)
+ * recorder.dump()
+ *
+ * @param capacity 每种操作保留的最近样本数
+ */
+class EMDBMetricsRecorder(private val capacity: Int = DEFAULT_CAPACITY) : EMDBMetricsListener {
+
+    companion object {
+        const val DEFAULT_CAPACITY = 256
+    }
+
+    init {
+        require(capacity > 0) { "capacity必须大于0" }
+    }
+
+    /**
+     * 单种操作的累计值和耗时环形缓冲区 ⚠️ 读写需持有自身的锁
+     */
+    private inner class Ring {
+        val lockWait = LongArray(capacity)
+        val query = LongArray(capacity)
+        val notify = LongArray(capacity)
+        val total = LongArray(capacity)
+        var next = 0
+        var size = 0
+        var count = 0L
+        var failures = 0L
+        var keyCount = 0L
+        var payloadBytes = 0L
+
+        fun add(sample: EMDBOpSample) {
+            lockWait[next] = sample.lockWaitNanos
+            query[next] = sample.queryNanos
+            notify[next] = sample.notifyNanos
+            total[next] = sample.totalNanos
+            next = (next + 1) % capacity
+            if (size < capacity) size++
+            count++
+            if (!sample.success) failures++
+            keyCount += sample.keyCount
+            payloadBytes += sample.payloadBytes
+        }
+
+        fun stats(operation: EMDBOperation): EMDBOpStats {
+            return EMDBOpStats(
+                operation = operation,
+                count = count,
+                failures = failures,
+                keyCount = keyCount,
+                payloadBytes = payloadBytes,
+                lockWait = EMDBLatency.of(lockWait, size),
+                query = EMDBLatency.of(query, size),
+                notify = EMDBLatency.of(notify, size),
+                total = EMDBLatency.of(total, size)
+            )
+        }
+    }
+
+    private val rings = ConcurrentHashMap<EMDBOperation, Ring>()
+
+    private val providerCalls = ConcurrentHashMap<String, AtomicLong>()
+    private val providerNanos = ConcurrentHashMap<String, AtomicLong>()
+
+    override fun onOperation(sample: EMDBOpSample) {
+        val ring = rings.computeIfAbsent(sample.operation) { Ring() }
+        synchronized(ring) { ring.add(sample) }
+    }
+
+    override fun onProviderCall(method: String, durationNanos: Long) {
+        providerCalls.computeIfAbsent(method) { AtomicLong() }.incrementAndGet()
+        providerNanos.computeIfAbsent(method) { AtomicLong() }.addAndGet(durationNanos)
+    }
+
+    /**
+     * 各操作的统计，没有发生过的操作不在结果中
+     */
+    fun getStats(): Map<EMDBOperation, EMDBOpStats> {
+        val result = HashMap<EMDBOperation, EMDBOpStats>()
+        rings.forEach { (operation, ring) ->
+            result[operation] = synchronized(ring) { ring.stats(operation) }
+        }
+        return result
+    }
+
+    /**
+     * Provider各方法的调用次数
+     */
+    fun getProviderCalls(): Map<String, Long> {
+        return providerCalls.mapValues { it.value.get() }
+    }
+
+    /**
+     * 输出到logcat，耗时单位为微秒
+     */
+    fun dump(tag: String = TAG) {
+        val stats = getStats()
+        if (stats.isEmpty() && providerCalls.isEmpty()) {
+            Log.d(tag, "数据库指标：无数据")
+            return
+        }
+        EMDBOperation.values().forEach { operation ->
+            val it = stats[operation] ?: return@forEach
+            Log.d(
+                tag, "数据库指标 ${operation.name} count=${it.count} fail=${it.failures} " +
+                    "keys=${it.keyCount} bytes=${it.payloadBytes} | total ${it.total} | " +
+                    "lock ${it.lockWait} | query ${it.query} | notify ${it.notify}"
+            )
+        }
+        providerCalls.forEach { (method, calls) ->
+            val count = calls.get()
+            val avgMicros = if (count == 0L) 0L else (providerNanos[method]?.get() ?: 0L) / count / 1000
+            Log.d(tag, "Provider调用 $method count=$count avg=${avgMicros}us")
+        }
+    }
+
+    fun reset() {
+        rings.clear()
+        providerCalls.clear()
+        providerNanos.clear()
+    }
+}
+
+/**
+ * 单种操作的统计
+ * @param count 累计次数
+ * @param failures 累计失败次数
+ * @param keyCount 累计涉及的key数量
+ * @param payloadBytes 累计数据大小
+ * @param lockWait 锁等待耗时分布（最近capacity次）
+ */
+data class EMDBOpStats(
+    val operation: EMDBOperation,
+    val count: Long,
+    val failures: Long,
+    val keyCount: Long,
+    val payloadBytes: Long,
+    val lockWait: EMDBLatency,
+    val query: EMDBLatency,
+    val notify: EMDBLatency,
+    val total: EMDBLatency
+)
+
+/**
+ * 耗时分布（纳秒）
+ */
+data class EMDBLatency(
+    val p50Nanos: Long,
+    val p90Nanos: Long,
+    val p99Nanos: Long,
+    val maxNanos: Long
+) {
+    internal companion object {
+        fun of(samples: LongArray, size: Int): EMDBLatency {
+            if (size == 0) return EMDBLatency(0, 0, 0, 0)
+            val sorted = samples.copyOf(size)
+            sorted.sort()
+            return EMDBLatency(
+                percentile(sorted, 0.5),
+                percentile(sorted, 0.9),
+                percentile(sorted, 0.99),
+                sorted[size - 1]
+            )
+        }
+
+        private fun percentile(sorted: LongArray, p: Double): Long {
+            val index = Math.ceil(p * sorted.size).toInt() - 1
+            return sorted[index.coerceIn(0, sorted.size - 1)]
+        }
+    }
+
+    override fun toString(): String {
+        return "p50=${p50Nanos / 1000}us p90=${p90Nanos / 1000}us p99=${p99Nanos / 1000}us max=${maxNanos / 1000}us"
+    }
+}
@@ -0,0 +1,26 @@
+package com.wyz.emlibrary.db
+
+import android.database.sqlite.SQLiteDatabase
+
+/**
+ * 数据库迁移步骤
+ * EMDBHelper按版本顺序依次执行，所有步骤在SQLiteOpenHelper升级的同一事务中执行，失败时整体回滚
+ * ⚠️ 步骤内不要再开启事务
+ *
+ * EMDBMigration(1, 2) { db ->
+ *     db.execSQL("ALTER TABLE ...")
+ * }
+ *
+ * @param startVersion 起始版本
+ * @param endVersion 目标版本
+ */
+class EMDBMigration(
+    val startVersion: Int,
+    val endVersion: Int,
+    private val migration: (SQLiteDatabase) -> Unit
+) {
+
+    fun migrate(db: SQLiteDatabase) {
+        migration(db)
+    }
+}
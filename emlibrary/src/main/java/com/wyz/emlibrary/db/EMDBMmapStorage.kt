@@ -0,0 +1,592 @@
+package com.wyz.emlibrary.db
+
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.util.Log
+import com.wyz.emlibrary.TAG
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * 内存映射的追加写KV存储（类似MMKV）
+ * 所有数据常驻内存（哈希索引），写入时在映射区域末尾追加一条带CRC的记录，不经过SQLite
+ * 映射区域由系统负责回写磁盘，进程崩溃不丢数据；断电时可能丢失最后几条记录
+ *
+ * 文件格式：
+ * header：MAGIC(int) | VERSION(int) | dataEnd(int) | 保留(int)
+ * record：length(int) | crc32(int) | payload(length)
+ * payload：op(byte) + 参数，PUT：id(long) userId key expireAt(long) type(byte) value；DELETE：userId key；CLEAR_USER：userId
+ *
+ * 启动时按顺序重放记录重建索引，CRC校验失败的记录及之后的内容视为损坏并截断；VERSION不符的文件改名备份后新建
+ * 一次写操作（可能追加多条记录）只在commit()更新header后整批生效，中途失败时回滚索引和dataEnd，已追加的记录被后续写入覆盖
+ * 记录数超过有效key数量的COMPACT_RATIO倍时重写文件（先写临时文件再替换）
+ * 所有方法在同一把锁内执行
+ */
+internal class EMDBMmapStorage(private val file: File) : EMDBStorage {
+
+    companion object {
+        private const val MAGIC = 0x454D4D4B
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 16
+        private const val OFFSET_DATA_END = 8
+        private const val RECORD_HEADER_SIZE = 8
+
+        /**
+         * 初始映射大小，之后按2倍扩容
+         */
+        private const val INITIAL_SIZE = 64 * 1024
+
+        /**
+         * 文件小于该大小时不压缩
+         */
+        private const val COMPACT_MIN_BYTES = 256 * 1024
+        private const val COMPACT_RATIO = 2
+
+        private const val OP_PUT: Byte = 1
+        private const val OP_DELETE: Byte = 2
+        private const val OP_CLEAR_USER: Byte = 3
+
+        private const val TYPE_TEXT: Byte = 1
+        private const val TYPE_LONG: Byte = 2
+        private const val TYPE_DOUBLE: Byte = 3
+        private const val TYPE_BLOB: Byte = 4
+
+        /**
+         * 与key_value_table列顺序一致
+         */
+        private val CURSOR_COLUMNS = arrayOf(
+            EMDBConstant.KEY_ID,
+            EMDBConstant.KEY_NAME,
+            EMDBConstant.KEY_VALUE,
+            EMDBConstant.KEY_USER_ID,
+            EMDBConstant.KEY_DATA,
+            EMDBConstant.KEY_EXPIRE_AT
+        )
+    }
+
+    private data class EntryKey(val userId: String, val key: String)
+
+    /**
+     * @param id 写入序号，导出分页使用
+     * @param value String / Long / Double / ByteArray
+     */
+    private class Entry(val id: Long, val value: Any, val expireAt: Long) {
+        fun isExpired(now: Long): Boolean = expireAt in 1..now
+    }
+
+    private val index = HashMap<EntryKey, Entry>()
+    private var nextId = 1L
+
+    /**
+     * 当前写操作修改过的key及其修改前的值（null表示原来不存在），写操作失败时据此回滚索引
+     */
+    private val undo = HashMap<EntryKey, Entry?>()
+
+    private lateinit var channel: FileChannel
+    private lateinit var buffer: MappedByteBuffer
+
+    /**
+     * 有效数据的结束位置，之后追加新记录
+     */
+    private var dataEnd = HEADER_SIZE
+
+    /**
+     * 文件中的记录数（包括已被覆盖的），用于判断是否需要压缩
+     */
+    private var recordCount = 0
+
+    private val encoded = ByteArrayOutputStream()
+    private val encoder = DataOutputStream(encoded)
+    private val crc = CRC32()
+
+    init {
+        open()
+    }
+
+    // =============================== 文件 ===============================
+
+    private fun open() {
+        file.parentFile?.mkdirs()
+        channel = RandomAccessFile(file, "rw").channel
+        val fileSize = channel.size()
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityFor(fileSize.toInt()).toLong())
+        index.clear()
+        recordCount = 0
+        if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC)
+            buffer.putInt(4, VERSION)
+            dataEnd = HEADER_SIZE
+            commit()
+            return
+        }
+        val version = buffer.getInt(4)
+        if (version != VERSION) {
+            // 更高版本写入的文件（如应用降级）无法解析，保留原文件，新建空文件
+            channel.close()
+            val backup = File(file.path + ".v$version.bak")
+            Log.e(TAG, "mmap存储版本不支持：${file.name} version:$version，备份为${backup.name}")
+            backup.delete()
+            if (!file.renameTo(backup) && !file.delete()) throw IOException("cannot replace ${file.name}")
+            open()
+            return
+        }
+        load()
+    }
+
+    /**
+     * 重放记录重建索引
+     */
+    private fun load() {
+        val end = buffer.getInt(OFFSET_DATA_END).coerceIn(HEADER_SIZE, buffer.capacity())
+        var position = HEADER_SIZE
+        while (position + RECORD_HEADER_SIZE <= end) {
+            val length = buffer.getInt(position)
+            // Long运算，损坏的length不会溢出，也不会按其分配超大数组
+            if (length <= 0 || position.toLong() + RECORD_HEADER_SIZE + length > end) break
+            val payload = ByteArray(length)
+            buffer.position(position + RECORD_HEADER_SIZE)
+            buffer.get(payload)
+            crc.reset()
+            crc.update(payload)
+            if (crc.value.toInt() != buffer.getInt(position + 4)) break
+            replay(payload)
+            recordCount++
+            position += RECORD_HEADER_SIZE + length
+        }
+        if (position != end) {
+            Log.e(TAG, "mmap存储记录损坏，截断：${file.name} $position/$end")
+        }
+        dataEnd = position
+        commit()
+    }
+
+    private fun replay(payload: ByteArray) {
+        val input = DataInputStream(ByteArrayInputStream(payload))
+        when (input.readByte()) {
+            OP_PUT -> {
+                val id = input.readLong()
+                val userId = readString(input)
+                val key = readString(input)
+                val expireAt = input.readLong()
+                index[EntryKey(userId, key)] = Entry(id, readValue(input), expireAt)
+                if (id >= nextId) nextId = id + 1
+            }
+            OP_DELETE -> {
+                val userId = readString(input)
+                index.remove(EntryKey(userId, readString(input)))
+            }
+            OP_CLEAR_USER -> {
+                val userId = readString(input)
+                index.keys.removeAll { it.userId == userId }
+            }
+        }
+    }
+
+    private fun capacityFor(required: Int): Int {
+        var capacity = INITIAL_SIZE
+        while (capacity < required) capacity *= 2
+        return capacity
+    }
+
+    /**
+     * 在末尾追加一条记录，需调用commit()后才对重启可见
+     */
+    private fun append(write: DataOutputStream.() -> Unit) {
+        encoded.reset()
+        encoder.write()
+        encoder.flush()
+        val payload = encoded.toByteArray()
+        val end = dataEnd + RECORD_HEADER_SIZE + payload.size
+        if (end > buffer.capacity()) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityFor(end).toLong())
+        }
+        crc.reset()
+        crc.update(payload)
+        buffer.putInt(dataEnd, payload.size)
+        buffer.putInt(dataEnd + 4, crc.value.toInt())
+        buffer.position(dataEnd + RECORD_HEADER_SIZE)
+        buffer.put(payload)
+        dataEnd = end
+        recordCount++
+    }
+
+    /**
+     * 更新header中的结束位置，之前追加的记录整批生效
+     */
+    private fun commit() {
+        buffer.putInt(OFFSET_DATA_END, dataEnd)
+    }
+
+    private fun maybeCompact() {
+        if (dataEnd < COMPACT_MIN_BYTES || recordCount <= index.size * COMPACT_RATIO) return
+        try {
+            compact()
+        } catch (e: IOException) {
+            Log.e(TAG, "mmap存储压缩异常：${e.message}")
+        }
+    }
+
+    /**
+     * 只写入有效且未过期的数据到临时文件，再替换原文件
+     * 无论替换是否成功都重新打开文件并从文件重建索引，失败时继续使用原文件
+     */
+    private fun compact() {
+        val now = System.currentTimeMillis()
+        val tmp = File(file.path + ".tmp")
+        try {
+            RandomAccessFile(tmp, "rw").use { raf ->
+                raf.setLength(0)
+                val output = DataOutputStream(BufferedOutputStream(FileOutputStream(raf.fd)))
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+                output.writeInt(0)
+                output.writeInt(0)
+                var end = HEADER_SIZE
+                index.entries.filter { !it.value.isExpired(now) }.sortedBy { it.value.id }.forEach { (entryKey, entry) ->
+                    encoded.reset()
+                    writePut(encoder, entry.id, entryKey.userId, entryKey.key, entry.value, entry.expireAt)
+                    encoder.flush()
+                    val payload = encoded.toByteArray()
+                    crc.reset()
+                    crc.update(payload)
+                    output.writeInt(payload.size)
+                    output.writeInt(crc.value.toInt())
+                    output.write(payload)
+                    end += RECORD_HEADER_SIZE + payload.size
+                }
+                output.flush()
+                raf.seek(OFFSET_DATA_END.toLong())
+                raf.writeInt(end)
+                raf.fd.sync()
+            }
+            buffer.force()
+            channel.close()
+            if (!tmp.renameTo(file)) throw IOException("rename ${tmp.name} failed")
+        } finally {
+            // 替换成功后临时文件已不存在
+            tmp.delete()
+            if (!channel.isOpen) open()
+        }
+        Log.d(TAG, "mmap存储压缩完成：${file.name} size:$dataEnd count:${index.size}")
+    }
+
+    // =============================== 编码 ===============================
+
+    private fun writePut(output: DataOutputStream, id: Long, userId: String, key: String, value: Any, expireAt: Long) {
+        output.writeByte(OP_PUT.toInt())
+        output.writeLong(id)
+        writeString(output, userId)
+        writeString(output, key)
+        output.writeLong(expireAt)
+        when (value) {
+            is String -> {
+                output.writeByte(TYPE_TEXT.toInt())
+                writeString(output, value)
+            }
+            is Long -> {
+                output.writeByte(TYPE_LONG.toInt())
+                output.writeLong(value)
+            }
+            is Double -> {
+                output.writeByte(TYPE_DOUBLE.toInt())
+                output.writeDouble(value)
+            }
+            is ByteArray -> {
+                output.writeByte(TYPE_BLOB.toInt())
+                output.writeInt(value.size)
+                output.write(value)
+            }
+            else -> throw IllegalArgumentException("不支持的类型：${value.javaClass.name}")
+        }
+    }
+
+    private fun readValue(input: DataInputStream): Any {
+        return when (val type = input.readByte()) {
+            TYPE_TEXT -> readString(input)
+            TYPE_LONG -> input.readLong()
+            TYPE_DOUBLE -> input.readDouble()
+            TYPE_BLOB -> ByteArray(input.readInt()).also { input.readFully(it) }
+            else -> throw IOException("unknown type: $type")
+        }
+    }
+
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    // =============================== 内部读写 ===============================
+
+    /**
+     * Int/Float统一为Long/Double，与SQLite存储读出的类型一致
+     */
+    private fun normalize(value: Any): Any {
+        return when (value) {
+            is Int -> value.toLong()
+            is Float -> value.toDouble()
+            is String, is Long, is Double, is ByteArray -> value
+            else -> throw IllegalArgumentException("不支持的类型：${value.javaClass.name}")
+        }
+    }
+
+    /**
+     * 写操作内修改索引，记录修改前的值用于回滚
+     * @param entry 为null时删除
+     */
+    private fun setEntry(entryKey: EntryKey, entry: Entry?) {
+        if (!undo.containsKey(entryKey)) undo[entryKey] = index[entryKey]
+        if (entry == null) index.remove(entryKey) else index[entryKey] = entry
+    }
+
+    private fun put(userId: String, key: String, value: Any, expireAt: Long) {
+        val id = nextId++
+        val normalized = normalize(value)
+        append { writePut(this, id, userId, key, normalized, expireAt) }
+        setEntry(EntryKey(userId, key), Entry(id, normalized, expireAt))
+    }
+
+    private fun delete(userId: String, key: String) {
+        val entryKey = EntryKey(userId, key)
+        if (!index.containsKey(entryKey)) return
+        setEntry(entryKey, null)
+        append {
+            writeByte(OP_DELETE.toInt())
+            writeString(this, userId)
+            writeString(this, key)
+        }
+    }
+
+    /**
+     * @return 未过期的值
+     */
+    private fun current(userId: String, key: String, now: Long = System.currentTimeMillis()): Entry? {
+        val entry = index[EntryKey(userId, key)] ?: return null
+        return if (entry.isExpired(now)) null else entry
+    }
+
+    /**
+     * 写操作统一处理：提交、必要时压缩
+     * 异常时回滚索引、dataEnd和记录数并返回失败：header未更新，本次追加的记录不会被重放，之后的写入从原位置覆盖
+     */
+    private inline fun <T> write(failure: T, block: () -> T): T {
+        synchronized(this) {
+            val startEnd = dataEnd
+            val startCount = recordCount
+            val result = try {
+                block().also { commit() }
+            } catch (e: Exception) {
+                undo.forEach { (entryKey, entry) ->
+                    if (entry == null) index.remove(entryKey) else index[entryKey] = entry
+                }
+                dataEnd = startEnd
+                recordCount = startCount
+                Log.e(TAG, "mmap存储写入异常：${e.message}")
+                return failure
+            } finally {
+                undo.clear()
+            }
+            maybeCompact()
+            return result
+        }
+    }
+
+    // =============================== EMDBStorage ===============================
+
+    override fun saveKeyValue(key: String, value: String, userId: String, expireAt: Long): Boolean {
+        return write(false) {
+            put(userId, key, value, expireAt)
+            true
+        }
+    }
+
+    override fun saveTypedValue(key: String, value: Any, userId: String, expireAt: Long): Boolean {
+        return write(false) {
+            put(userId, key, value, expireAt)
+            true
+        }
+    }
+
+    override fun saveAllUsers(values: Map<String, Map<String, String>>): Boolean {
+        return write(false) {
+            values.forEach { (userId, userValues) ->
+                userValues.forEach { (key, value) -> put(userId, key, value, 0L) }
+            }
+            true
+        }
+    }
+
+    override fun saveIfChanged(key: String, value: String, userId: String): Int {
+        return write(-1) {
+            val entry = index[EntryKey(userId, key)]
+            val now = System.currentTimeMillis()
+            val unchanged = if (entry == null || entry.isExpired(now)) {
+                entry == null && value.isEmpty()
+            } else {
+                entry.expireAt == 0L && EMDBValue.asString(entry.value) == value
+            }
+            if (unchanged) {
+                0
+            } else {
+                put(userId, key, value, 0L)
+                1
+            }
+        }
+    }
+
+    override fun compareAndSet(key: String, expected: String?, newValue: String, userId: String): Boolean {
+        return write(false) {
+            val entry = current(userId, key)
+            // expected为""时key不存在也视为匹配，与EMDBDao一致
+            val matched = when {
+                expected == null -> entry == null
+                entry == null -> expected.isEmpty()
+                else -> EMDBValue.asString(entry.value) == expected
+            }
+            if (matched) put(userId, key, newValue, 0L)
+            matched
+        }
+    }
+
+    override fun increment(key: String, delta: Long, userId: String): Long? {
+        return write(null) {
+            val base = current(userId, key)?.let { EMDBValue.asLong(it.value) ?: it.value.toString().toDoubleOrNull()?.toLong() } ?: 0L
+            val result = base + delta
+            put(userId, key, result, 0L)
+            result
+        }
+    }
+
+    override fun getCursorByKey(key: String, userId: String): Cursor? {
+        val entry = synchronized(this) { current(userId, key) }
+        val cursor = MatrixCursor(CURSOR_COLUMNS)
+        if (entry != null) {
+            val text = entry.value as? String
+            val data = if (text == null) entry.value else null
+            cursor.addRow(arrayOf(entry.id, key, text, userId, data, entry.expireAt))
+        }
+        return cursor
+    }
+
+    override fun getStoredValue(key: String, userId: String): Any? {
+        val entry = synchronized(this) { current(userId, key) } ?: return null
+        return EMDBValue.withExpire(entry.value, entry.expireAt)
+    }
+
+    override fun getValues(keys: Collection<String>, userId: String): Map<String, Any> {
+        val result = HashMap<String, Any>(keys.size)
+        synchronized(this) {
+            val now = System.currentTimeMillis()
+            keys.forEach { key ->
+                val entry = current(userId, key, now) ?: return@forEach
+                result[key] = EMDBValue.withExpire(entry.value, entry.expireAt)!!
+            }
+        }
+        return result
+    }
+
+    override fun getByPrefix(prefix: String, userId: String): Map<String, Any> {
+        val result = HashMap<String, Any>()
+        synchronized(this) {
+            val now = System.currentTimeMillis()
+            index.forEach { (entryKey, entry) ->
+                if (entryKey.userId != userId || !entryKey.key.startsWith(prefix) || entry.isExpired(now)) return@forEach
+                result[entryKey.key] = EMDBValue.withExpire(entry.value, entry.expireAt)!!
+            }
+        }
+        return result
+    }
+
+    override fun exportPage(afterId: Long, limit: Int, consumer: (EMDBBackup.Row) -> Unit): Long {
+        // 锁内取出一页，锁外写出，避免输出流阻塞写入
+        val page = synchronized(this) {
+            val now = System.currentTimeMillis()
+            index.entries
+                .filter { it.value.id > afterId && !it.value.isExpired(now) }
+                .sortedBy { it.value.id }
+                .take(limit)
+                .map { (entryKey, entry) -> entry.id to EMDBBackup.Row(entryKey.userId, entryKey.key, entry.value, entry.expireAt) }
+        }
+        page.forEach { consumer(it.second) }
+        return page.lastOrNull()?.first ?: -1L
+    }
+
+    override fun saveRows(rows: List<EMDBBackup.Row>): Boolean {
+        return write(false) {
+            rows.forEach { put(it.userId, it.key, it.value, it.expireAt) }
+            true
+        }
+    }
+
+    override fun deleteKeyValue(key: String, userId: String): Boolean {
+        return write(false) {
+            delete(userId, key)
+            true
+        }
+    }
+
+    override fun deleteAll(keys: Collection<String>, userId: String): Boolean {
+        return write(false) {
+            keys.forEach { delete(userId, it) }
+            true
+        }
+    }
+
+    override fun deleteExpired(now: Long, limit: Int): List<Pair<String, String>> {
+        return write(emptyList()) {
+            val expired = index.entries
+                .filter { it.value.isExpired(now) }
+                .take(limit)
+                .map { it.key }
+            expired.forEach { delete(it.userId, it.key) }
+            expired.map { it.userId to it.key }
+        }
+    }
+
+    override fun clearKeyValue(userId: String?): Boolean {
+        return write(false) {
+            if (userId == null) {
+                // 清空全部直接丢弃所有记录
+                index.keys.toList().forEach { setEntry(it, null) }
+                dataEnd = HEADER_SIZE
+                recordCount = 0
+            } else {
+                index.keys.filter { it.userId == userId }.forEach { setEntry(it, null) }
+                append {
+                    writeByte(OP_CLEAR_USER.toInt())
+                    writeString(this, userId)
+                }
+            }
+            true
+        }
+    }
+
+    override fun checkpoint(force: Boolean) {
+        synchronized(this) {
+            if (force) buffer.force() else maybeCompact()
+        }
+    }
+
+    override fun close() {
+        synchronized(this) {
+            buffer.force()
+            channel.close()
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import android.database.Cursor
+
+/**
+ * SQLite存储，委托给EMDBHelper + EMDBDao
+ * @param name 数据库文件名
+ */
+internal class EMDBSQLiteStorage(
+    context: Context,
+    name: String,
+    walEnabled: Boolean
+) : EMDBStorage {
+
+    private val helper = EMDBHelper(context, walEnabled, name)
+    private val dao = EMDBDao(helper)
+
+    override fun saveKeyValue(key: String, value: String, userId: String, expireAt: Long): Boolean {
+        return dao.saveKeyValue(key, value, userId, expireAt)
+    }
+
+    override fun saveTypedValue(key: String, value: Any, userId: String, expireAt: Long): Boolean {
+        return dao.saveTypedValue(key, value, userId, expireAt)
+    }
+
+    override fun saveAllUsers(values: Map<String, Map<String, String>>): Boolean {
+        return dao.saveAllUsers(values)
+    }
+
+    override fun saveIfChanged(key: String, value: String, userId: String): Int {
+        return dao.saveIfChanged(key, value, userId)
+    }
+
+    override fun compareAndSet(key: String, expected: String?, newValue: String, userId: String): Boolean {
+        return dao.compareAndSet(key, expected, newValue, userId)
+    }
+
+    override fun increment(key: String, delta: Long, userId: String): Long? {
+        return dao.increment(key, delta, userId)
+    }
+
+    override fun getCursorByKey(key: String, userId: String): Cursor? {
+        return dao.getCursorByKey(key, userId)
+    }
+
+    override fun getStoredValue(key: String, userId: String): Any? {
+        return dao.getStoredValue(key, userId)
+    }
+
+    override fun getValues(keys: Collection<String>, userId: String): Map<String, Any> {
+        return dao.getValues(keys, userId)
+    }
+
+    override fun getByPrefix(prefix: String, userId: String): Map<String, Any> {
+        return dao.getByPrefix(prefix, userId)
+    }
+
+    override fun exportPage(afterId: Long, limit: Int, consumer: (EMDBBackup.Row) -> Unit): Long {
+        return dao.exportPage(afterId, limit, consumer)
+    }
+
+    override fun saveRows(rows: List<EMDBBackup.Row>): Boolean {
+        return dao.saveRows(rows)
+    }
+
+    override fun deleteKeyValue(key: String, userId: String): Boolean {
+        return dao.deleteKeyValue(key, userId)
+    }
+
+    override fun deleteAll(keys: Collection<String>, userId: String): Boolean {
+        return dao.deleteAll(keys, userId)
+    }
+
+    override fun deleteExpired(now: Long, limit: Int): List<Pair<String, String>> {
+        return dao.deleteExpired(now, limit)
+    }
+
+    override fun clearKeyValue(userId: String?): Boolean {
+        return dao.clearKeyValue(userId)
+    }
+
+    override fun checkpoint(force: Boolean) {
+        helper.checkpoint(force)
+    }
+
+    override fun close() {
+        dao.close()
+        helper.close()
+    }
+}
@@ -0,0 +1,221 @@
+package com.wyz.emlibrary.db
+
+import android.content.Context
+import java.security.MessageDigest
+import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * 数据库分片方式
+ * Single：所有userId共用一个数据库文件（默认）
+ * PerUser：每个userId一个数据库文件
+ * Buckets：userId按哈希分到count个数据库文件中
+ * 不同分片使用各自的数据库文件和锁，不同user的读写互不竞争
+ * ⚠️ 切换分片方式不会迁移已有数据，可通过exportTo/importFrom迁移
+ */
+sealed class EMDBShardMode {
+    object Single : EMDBShardMode()
+    object PerUser : EMDBShardMode()
+    class Buckets(val count: Int) : EMDBShardMode() {
+        init {
+            require(count > 0) { "分片数必须大于0" }
+        }
+    }
+}
+
+/**
+ * 单个分片：存储文件 + 分段锁
+ * 单key写入持有tableLock读锁 + (userId, key)哈希对应的分段锁，不同key的写入互不阻塞
+ * 清空、删除文件、关闭等整表操作持有tableLock写锁，等待所有单key写入完成
+ * ⚠️ 同时持有多个分段锁时必须按下标从小到大加锁，见stripesOf()
+ */
+internal class EMDBShard(val name: String, val storage: EMDBStorage) {
+
+    companion object {
+        /**
+         * 分段锁数量，必须是2的幂
+         */
+        private const val STRIPE_COUNT = 16
+    }
+
+    /**
+     * 整表锁：单key写入持有读锁，整表操作持有写锁
+     */
+    val tableLock = ReentrantReadWriteLock()
+
+    private val stripes = Array(STRIPE_COUNT) { ReentrantLock() }
+
+    /**
+     * 上次检查WAL之后写入的行数
+     */
+    val rowsSinceCheckpoint = AtomicInteger()
+
+    fun stripeOf(userId: String, key: String): ReentrantLock {
+        return stripes[indexOf(userId, key)]
+    }
+
+    /**
+     * 多个key对应的分段锁，已去重并按下标排序，依次加锁可避免死锁
+     * @param keys (userId, key)
+     */
+    fun stripesOf(keys: Collection<Pair<String, String>>): List<ReentrantLock> {
+        val indexes = TreeSet<Int>()
+        keys.forEach { (userId, key) -> indexes.add(indexOf(userId, key)) }
+        return indexes.map { stripes[it] }
+    }
+
+    private fun indexOf(userId: String, key: String): Int {
+        val hash = 31 * userId.hashCode() + key.hashCode()
+        // 扰动高位，避免相近的key落到同一分段
+        return (hash xor (hash ushr 16)) and (STRIPE_COUNT - 1)
+    }
+
+    fun close() {
+        storage.checkpoint(force = true)
+        storage.close()
+    }
+}
+
+/**
+ * 按EMDBShardMode将userId路由到分片，分片在首次访问时创建
+ * 不同存储引擎的文件后缀不同，均位于databases目录下
+ */
+internal class EMDBShards(
+    private val context: Context,
+    private val mode: EMDBShardMode,
+    private val walEnabled: Boolean,
+    private val backend: EMDBBackend = EMDBBackend.SQLITE
+) {
+
+    companion object {
+        private const val DEFAULT_PREFIX = "emlibrary"
+        private const val USER_PREFIX = "emlibrary_user_"
+        private const val BUCKET_PREFIX = "emlibrary_shard_"
+        private const val SQLITE_SUFFIX = ".db"
+        private const val MMAP_SUFFIX = ".kv"
+    }
+
+    private val suffix = if (backend == EMDBBackend.MMAP) MMAP_SUFFIX else SQLITE_SUFFIX
+
+    private val defaultName = DEFAULT_PREFIX + suffix
+
+    private val shards = ConcurrentHashMap<String, EMDBShard>()
+
+    fun of(userId: String): EMDBShard {
+        val name = nameOf(userId)
+        return shards.computeIfAbsent(name) { createShard(it) }
+    }
+
+    private fun createShard(name: String): EMDBShard {
+        val storage = when (backend) {
+            EMDBBackend.SQLITE -> EMDBSQLiteStorage(context, name, walEnabled)
+            EMDBBackend.MMAP -> EMDBMmapStorage(context.getDatabasePath(name))
+        }
+        return EMDBShard(name, storage)
+    }
+
+    /**
+     * 所有分片，磁盘上已存在但尚未打开的分片会被打开并保持打开，只用于导出
+     * 过期清理等定时任务使用opened()，避免打开每个user的数据库文件
+     */
+    fun all(): List<EMDBShard> {
+        val names = HashSet<String>(shards.keys)
+        names.addAll(diskNames())
+        if (mode is EMDBShardMode.Single) names.add(defaultName)
+        return names.map { name ->
+            shards.computeIfAbsent(name) { createShard(it) }
+        }
+    }
+
+    /**
+     * 当前已打开的分片
+     */
+    fun opened(): Collection<EMDBShard> {
+        return shards.values
+    }
+
+    /**
+     * userId是否路由到该分片
+     */
+    fun contains(shard: EMDBShard, userId: String): Boolean {
+        return nameOf(userId) == shard.name
+    }
+
+    /**
+     * 删除磁盘上尚未打开的分片文件（清空全部时使用），不必为了清空而打开数据库
+     * 通过compute与of()互斥：删除期间其他线程打开同名分片会等待删除完成后新建；已打开的分片不受影响
+     * 分片实例创建后不会被移除，持有分片的线程不会用到已删除的文件
+     */
+    fun deleteUnopened(): Boolean {
+        var result = true
+        diskNames().forEach { name ->
+            shards.compute(name) { _, existing ->
+                if (existing == null && !deleteFile(name)) result = false
+                existing
+            }
+        }
+        return result
+    }
+
+    /**
+     * PerUser模式下userId的分片尚未打开时直接删除其文件，不必为了清空而打开、创建数据库
+     * @param onDelete 删除前在compute内执行（清除该user待落库的数据），期间其他线程打开该分片会等待
+     * @return null 分片已打开或不是PerUser模式，需在整表锁内清空；true/false 删除结果
+     */
+    fun deleteUnopened(userId: String, onDelete: () -> Unit): Boolean? {
+        if (mode !is EMDBShardMode.PerUser) return null
+        var result: Boolean? = null
+        shards.compute(nameOf(userId)) { name, existing ->
+            if (existing == null) {
+                onDelete()
+                result = !context.getDatabasePath(name).exists() || deleteFile(name)
+            }
+            existing
+        }
+        return result
+    }
+
+    private fun deleteFile(name: String): Boolean {
+        return when (backend) {
+            EMDBBackend.SQLITE -> context.deleteDatabase(name)
+            EMDBBackend.MMAP -> context.getDatabasePath(name).delete()
+        }
+    }
+
+    private fun diskNames(): List<String> {
+        return context.databaseList().filter { isShardFile(it) }
+    }
+
+    fun closeAll() {
+        shards.values.forEach { it.close() }
+        shards.clear()
+    }
+
+    private fun nameOf(userId: String): String {
+        return when (mode) {
+            is EMDBShardMode.Single -> defaultName
+            is EMDBShardMode.PerUser -> USER_PREFIX + sha1(userId) + suffix
+            is EMDBShardMode.Buckets -> BUCKET_PREFIX + (userId.hashCode() and Int.MAX_VALUE) % mode.count + suffix
+        }
+    }
+
+    private fun isShardFile(name: String): Boolean {
+        if (!name.endsWith(suffix)) return false
+        return when (mode) {
+            is EMDBShardMode.Single -> name == defaultName
+            is EMDBShardMode.PerUser -> name.startsWith(USER_PREFIX)
+            is EMDBShardMode.Buckets -> name.startsWith(BUCKET_PREFIX)
+        }
+    }
+
+    /**
+     * userId可能包含任意字符，文件名使用其SHA-1，保证不同user不会落到同一文件
+     */
+    private fun sha1(value: String): String {
+        val digest = MessageDigest.getInstance("SHA-1").digest(value.toByteArray(Charsets.UTF_8))
+        return digest.joinToString("") { "%02x".format(it) }
+    }
+}
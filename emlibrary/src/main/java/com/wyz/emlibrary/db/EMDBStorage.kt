@@ -0,0 +1,108 @@
+package com.wyz.emlibrary.db
+
+import android.database.Cursor
+
+/**
+ * 存储引擎
+ * SQLITE：SQLite数据库（默认），适合数据量大、需要持久化保证的场景
+ * MMAP：内存映射的追加写日志 + 内存哈希索引（类似MMKV），所有数据常驻内存，
+ * 读写不经过SQLite，适合标志位、计数器等小而频繁读写的值
+ */
+enum class EMDBBackend {
+    SQLITE,
+    MMAP
+}
+
+/**
+ * EMDBManager背后的存储接口，每个分片一个实例
+ * 读操作可并发调用；写操作由EMDBManager持有分片写锁后调用
+ * 读取的值为 String / Long / Double / ByteArray，带过期时间的值包装为EMDBValue.Expiring
+ */
+internal interface EMDBStorage {
+
+    /**
+     * @param expireAt 过期时间戳（毫秒），0表示永不过期
+     */
+    fun saveKeyValue(key: String, value: String, userId: String, expireAt: Long = 0L): Boolean
+
+    /**
+     * @param value Int/Long/Float/Double/ByteArray
+     */
+    fun saveTypedValue(key: String, value: Any, userId: String, expireAt: Long = 0L): Boolean
+
+    /**
+     * @param values userId -> (key -> value)，整批提交
+     */
+    fun saveAllUsers(values: Map<String, Map<String, String>>): Boolean
+
+    fun saveAll(values: Map<String, String>, userId: String): Boolean {
+        return saveAllUsers(mapOf(userId to values))
+    }
+
+    /**
+     * @return 1 已写入 0 值未变化 -1 写入失败
+     */
+    fun saveIfChanged(key: String, value: String, userId: String): Int
+
+    /**
+     * @param expected 为null表示要求key不存在（或已过期）；为""时值为""或key不存在都视为匹配
+     */
+    fun compareAndSet(key: String, expected: String?, newValue: String, userId: String): Boolean
+
+    /**
+     * @return 自增后的值，null 写入失败
+     */
+    fun increment(key: String, delta: Long, userId: String): Long?
+
+    fun getCursorByKey(key: String, userId: String): Cursor?
+
+    /**
+     * ⚠️ 异常由调用方处理
+     * @return null key不存在或已过期
+     */
+    fun getStoredValue(key: String, userId: String): Any?
+
+    /**
+     * ⚠️ 异常由调用方处理
+     */
+    fun getValues(keys: Collection<String>, userId: String): Map<String, Any>
+
+    /**
+     * ⚠️ 异常由调用方处理
+     */
+    fun getByPrefix(prefix: String, userId: String): Map<String, Any>
+
+    /**
+     * 分页导出未过期的数据 ⚠️ 异常由调用方处理
+     * @param afterId 上一页返回的位置，第一页传0
+     * @return 本页最后一行的位置，没有更多数据时返回-1
+     */
+    fun exportPage(afterId: Long, limit: Int, consumer: (EMDBBackup.Row) -> Unit): Long
+
+    /**
+     * 导入数据，整批提交，已存在的key被覆盖
+     */
+    fun saveRows(rows: List<EMDBBackup.Row>): Boolean
+
+    fun deleteKeyValue(key: String, userId: String): Boolean
+
+    fun deleteAll(keys: Collection<String>, userId: String): Boolean
+
+    /**
+     * @return 删除的 (userId, key)
+     */
+    fun deleteExpired(now: Long, limit: Int): List<Pair<String, String>>
+
+    /**
+     * @param userId 为null时清空全部
+     */
+    fun clearKeyValue(userId: String?): Boolean
+
+    /**
+     * 写入一定行数后调用，由存储自行决定是否整理文件（WAL checkpoint / 日志压缩）
+     * @param force 关闭前调用，确保数据写入磁盘
+     */
+    fun checkpoint(force: Boolean = false)
+
+    fun close()
+}
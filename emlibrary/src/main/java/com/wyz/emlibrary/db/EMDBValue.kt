@@ -0,0 +1,82 @@
+package com.wyz.emlibrary.db
+
+import android.database.Cursor
+
+/**
+ * key_value_table中值的存储与转换
+ * String存储在key_value列（TEXT）
+ * Int/Long存储为INTEGER、Float/Double存储为REAL、ByteArray存储为BLOB，均在key_data列（无类型亲和性，按原类型存储）
+ * 读取后在内存中以 String / Long / Double / ByteArray 表示
+ * 设置了过期时间的值包装为Expiring，便于缓存判断是否过期
+ */
+internal object EMDBValue {
+
+    /**
+     * 带过期时间的值
+     * @param expireAt 过期时间戳（毫秒）
+     */
+    class Expiring(val value: Any, val expireAt: Long) {
+        fun isExpired(now: Long = System.currentTimeMillis()): Boolean = expireAt <= now
+    }
+
+    /**
+     * @param expireAt 0表示永不过期，不包装
+     */
+    fun withExpire(value: Any?, expireAt: Long): Any? {
+        return if (value == null || expireAt <= 0) value else Expiring(value, expireAt)
+    }
+
+    fun unwrap(value: Any?): Any? {
+        return if (value is Expiring) value.value else value
+    }
+
+    /**
+     * 从cursor中读取值，无需经过String中转
+     * @param valueIndex key_value列下标
+     * @param dataIndex key_data列下标
+     */
+    fun read(cursor: Cursor, valueIndex: Int, dataIndex: Int): Any? {
+        if (!cursor.isNull(valueIndex)) return cursor.getString(valueIndex)
+        return when (cursor.getType(dataIndex)) {
+            Cursor.FIELD_TYPE_INTEGER -> cursor.getLong(dataIndex)
+            Cursor.FIELD_TYPE_FLOAT -> cursor.getDouble(dataIndex)
+            Cursor.FIELD_TYPE_BLOB -> cursor.getBlob(dataIndex)
+            Cursor.FIELD_TYPE_STRING -> cursor.getString(dataIndex)
+            else -> null
+        }
+    }
+
+    /**
+     * 数值转为String，BLOB不转换
+     */
+    fun asString(value: Any?): String? {
+        return when (value) {
+            null -> null
+            is String -> value
+            is ByteArray -> null
+            else -> value.toString()
+        }
+    }
+
+    fun asLong(value: Any?): Long? {
+        return when (value) {
+            is Long -> value
+            is Double -> value.toLong()
+            is String -> value.toLongOrNull()
+            else -> null
+        }
+    }
+
+    fun asDouble(value: Any?): Double? {
+        return when (value) {
+            is Double -> value
+            is Long -> value.toDouble()
+            is String -> value.toDoubleOrNull()
+            else -> null
+        }
+    }
+
+    fun asBytes(value: Any?): ByteArray? {
+        return value as? ByteArray
+    }
+}
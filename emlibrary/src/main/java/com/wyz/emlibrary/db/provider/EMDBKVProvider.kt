@@ -5,10 +5,17 @@ import android.content.ContentValues
 import android.database.Cursor
 import android.net.Uri
 import android.os.Bundle
+import android.os.ParcelFileDescriptor
+import android.util.Log
 import androidx.core.net.toUri
 import com.wyz.emlibrary.db.EMDBDao
 import com.wyz.emlibrary.db.EMDBManager
+import com.wyz.emlibrary.db.EMDBMetrics
 import com.wyz.emlibrary.util.isNotNullOrEmpty
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 /**
  * 对接了DBManager数据库 提供KV存储功能同时通知observer观察者（如果直接使用DBManager则无通知）
@@ -74,6 +81,21 @@ import com.wyz.emlibrary.util.isNotNullOrEmpty
  *     EMDBKVProvider.RESULT_VALUE,
  *     ""
  * )
+ *
+ * 批量写入（一次IPC）：
+ * val bundle = Bundle().apply {
+ *     putString(EMDBKVProvider.PARAMS_USER_ID, "1001")
+ *     putBundle(EMDBKVProvider.PARAMS_VALUES, Bundle().apply {
+ *         putString("token", "123")
+ *         putString("name", "abc")
+ *     })
+ * }
+ * context.contentResolver.call(EMDBKVProvider.BASE_URI, EMDBKVProvider.METHOD_PUT_ALL, null, bundle)
+ *
+ * 大量数据读取（管道传输，不受Bundle大小限制）：
+ * val uri = EMDBKVProvider.snapshotUri("1001", "config_")
+ * val values = context.contentResolver.openFileDescriptor(uri, "r")?.let { EMKVClient.readSnapshot(it) }
+ * 或直接使用EMKVClient.getSnapshot()
  */
 class EMDBKVProvider : ContentProvider() {
     companion object {
@@ -85,6 +107,32 @@ class EMDBKVProvider : ContentProvider() {
         const val PARAMS_KEY = "db_key"
         const val PARAMS_VALUE = "db_value"
         const val PARAMS_DEFAULT_VALUE = "default_value"
+        /**
+         * 批量入参：key-value键值对Bundle / key列表
+         */
+        const val PARAMS_VALUES = "db_values"
+        const val PARAMS_KEYS = "db_keys"
+        /**
+         * 有效期入参（毫秒，Long），可选，用于METHOD_PUT_STRING、METHOD_PUT_BYTES
+         */
+        const val PARAMS_TTL = "db_ttl"
+        /**
+         * 前缀查询入参
+         */
+        const val PARAMS_PREFIX = "db_prefix"
+        /**
+         * compareAndSet期望值入参（String），不传表示要求key不存在；传""时key不存在也视为匹配
+         */
+        const val PARAMS_EXPECTED = "db_expected"
+        /**
+         * 自增入参（Long），不传默认为1
+         */
+        const val PARAMS_DELTA = "db_delta"
+        /**
+         * 通知uri中的序号（每个Provider实例内连续递增）与Provider实例标识，用于EMKVClient检测通知丢失
+         */
+        const val PARAMS_SEQ = "db_seq"
+        const val PARAMS_EPOCH = "db_epoch"
 
         // ================= uri =================
         /**
@@ -95,6 +143,23 @@ class EMDBKVProvider : ContentProvider() {
         // content://com.emlibrary.db/type?userId=userId&key=key&value=value
         val BASE_URI: Uri = "content://$AUTHORITY".toUri()
 
+        /**
+         * 快照路径，配合openFile使用
+         * content://com.emlibrary.db/snapshot?db_userId=userId&db_prefix=prefix
+         */
+        const val PATH_SNAPSHOT = "snapshot"
+
+        /**
+         * @param prefix 为空时读取该user下所有数据
+         */
+        fun snapshotUri(userId: String = EMDBDao.DB_USER_DEFAULT, prefix: String = ""): Uri {
+            return BASE_URI.buildUpon()
+                .appendPath(PATH_SNAPSHOT)
+                .appendQueryParameter(PARAMS_USER_ID, userId)
+                .appendQueryParameter(PARAMS_PREFIX, prefix)
+                .build()
+        }
+
         /**
          * 默认占位符
          */
@@ -127,28 +192,116 @@ class EMDBKVProvider : ContentProvider() {
          * 插入 更新Boolean类型数据
          */
         const val METHOD_PUT_BOOLEAN = "put_boolean"
+        /**
+         * 获取 插入 更新Long类型数据（Int也使用此方法），按INTEGER存储
+         */
+        const val METHOD_GET_LONG = "get_long"
+        const val METHOD_PUT_LONG = "put_long"
+        /**
+         * 获取 插入 更新Double类型数据（Float也使用此方法），按REAL存储
+         */
+        const val METHOD_GET_DOUBLE = "get_double"
+        const val METHOD_PUT_DOUBLE = "put_double"
+        /**
+         * 获取 插入 更新ByteArray类型数据，按BLOB存储
+         */
+        const val METHOD_GET_BYTES = "get_bytes"
+        const val METHOD_PUT_BYTES = "put_bytes"
         /**
          * 删除指定user下的key-value数据
          */
         const val METHOD_DELETE = "delete"
+        /**
+         * 批量插入 更新String类型数据（单次IPC、单事务）
+         * 入参：PARAMS_VALUES Bundle(key -> value)
+         */
+        const val METHOD_PUT_ALL = "put_all"
+        /**
+         * 批量删除指定user下的key-value数据（单次IPC、单事务）
+         * 入参：PARAMS_KEYS ArrayList<String>
+         */
+        const val METHOD_DELETE_ALL = "delete_all"
 
         /**
          * 清空指定user下的所有key-value数据或情空全部数据
          */
         const val METHOD_CLEAR = "clear"
 
+        /**
+         * 批量获取String类型数据（单次IPC、单次查询）
+         * 入参：PARAMS_KEYS ArrayList<String>
+         * 结果：RESULT_VALUE Bundle(key -> value)，不存在的key不在结果中
+         */
+        const val METHOD_GET_VALUES = "get_values"
+        /**
+         * 获取指定user下以prefix开头的所有数据（单次IPC、单次查询）
+         * 入参：PARAMS_PREFIX 为空时返回该user下所有数据
+         * 结果：RESULT_VALUE Bundle(key -> value)
+         */
+        const val METHOD_GET_BY_PREFIX = "get_by_prefix"
+
+        /**
+         * 比较并设置String类型数据，比较和写入在Provider进程内一次完成
+         * 入参：PARAMS_EXPECTED（可选）、PARAMS_VALUE
+         * 结果：RESULT_VALUE Boolean 是否写入
+         */
+        const val METHOD_COMPARE_AND_SET = "compare_and_set"
+
+        /**
+         * 原子自增，在Provider进程内一条UPDATE完成，避免跨进程get + put之间的竞争
+         * 入参：PARAMS_DELTA（可选）
+         * 结果：RESULT_VALUE Long 自增后的值
+         */
+        const val METHOD_INCREMENT = "increment"
+
+        /**
+         * 获取通知合并统计
+         * 结果：RESULT_SUBMITTED、RESULT_DISPATCHED、RESULT_MERGED
+         */
+        const val METHOD_NOTIFY_STATS = "notify_stats"
+
         // ================= result key =================
         /**
          * 结果状态
          */
         const val RESULT_STATUS = "result_status"
         const val RESULT_VALUE = "result_value"
+        const val RESULT_SUBMITTED = "result_submitted"
+        const val RESULT_DISPATCHED = "result_dispatched"
+        const val RESULT_MERGED = "result_merged"
+
+        private const val TAG = "EMDBKVProvider"
+
+        /**
+         * 快照写入管道的线程，读取方消费慢时写入会阻塞，不能占用binder线程
+         */
+        private val snapshotExecutor: ExecutorService by lazy {
+            Executors.newCachedThreadPool { runnable ->
+                Thread(runnable, "EMKVSnapshot").apply { isDaemon = true }
+            }
+        }
+
+        /**
+         * 通知合并器，Provider所在进程内唯一
+         */
+        @Volatile
+        private var notifier: EMKVNotifier? = null
+
+        /**
+         * 当前进程（Provider所在进程）的通知合并统计
+         * @return null Provider未创建
+         */
+        fun getNotifyStats(): EMKVNotifyStats? {
+            return notifier?.stats()
+        }
     }
 
     override fun onCreate(): Boolean {
         if(!EMDBManager.initialized) {
             EMDBManager.init(context!!.applicationContext)
         }
+        val appContext = context!!.applicationContext
+        notifier = EMKVNotifier({ appContext.contentResolver })
         return true
     }
 
@@ -158,17 +311,19 @@ class EMDBKVProvider : ContentProvider() {
      * uri只负责定位数据，不负责数据的存储和读取
      */
     override fun insert(uri: Uri, values: ContentValues?): Uri? {
-        if (values == null) return uri
-        val userId = values.getAsString(PARAMS_USER_ID) ?: EMDBDao.DB_USER_DEFAULT
-        val key = values.getAsString(PARAMS_KEY) ?: return uri
-        val value = values.getAsString(PARAMS_VALUE) ?: ""
-
-        val result = EMDBManager.providerCheckSave(userId, key, value)
-        if (result != 1) return uri
-
-        // 只有变化才通知
-        val notifyUri = notifyChanged(TYPE_UPDATE, userId, key, value)
-        return notifyUri
+        return counted("insert") {
+            if (values == null) return uri
+            val userId = values.getAsString(PARAMS_USER_ID) ?: EMDBDao.DB_USER_DEFAULT
+            val key = values.getAsString(PARAMS_KEY) ?: return uri
+            val value = values.getAsString(PARAMS_VALUE) ?: ""
+
+            val result = EMDBManager.providerCheckSave(userId, key, value)
+            if (result != 1) return uri
+
+            // 只有变化才通知
+            val notifyUri = notifyChanged(TYPE_UPDATE, userId, key, value)
+            return notifyUri
+        }
     }
 
     /**
@@ -186,13 +341,15 @@ class EMDBKVProvider : ContentProvider() {
         selectionArgs: Array<out String?>?,
         sortOrder: String?
     ): Cursor? {
-        if (selectionArgs.isNullOrEmpty() || selectionArgs.size < 2) return null
+        return counted("query") {
+            if (selectionArgs.isNullOrEmpty() || selectionArgs.size < 2) return null
 
-        val userId = selectionArgs[0] ?: EMDBDao.DB_USER_DEFAULT
-        val key = selectionArgs[1]
-        if (userId.isEmpty() || key.isNullOrEmpty()) return null
+            val userId = selectionArgs[0] ?: EMDBDao.DB_USER_DEFAULT
+            val key = selectionArgs[1]
+            if (userId.isEmpty() || key.isNullOrEmpty()) return null
 
-        return EMDBManager.getCursorByKey(key, userId)
+            return EMDBManager.getCursorByKey(key, userId)
+        }
     }
 
 
@@ -210,20 +367,22 @@ class EMDBKVProvider : ContentProvider() {
         selection: String?,
         selectionArgs: Array<out String?>?
     ): Int {
-        if (values == null) return -1
-        val userId = values.getAsString(PARAMS_USER_ID) ?: EMDBDao.DB_USER_DEFAULT
-        val key = values.getAsString(PARAMS_KEY) ?: return -1
-        val value = values.getAsString(PARAMS_VALUE) ?: ""
-
-        val result = EMDBManager.providerCheckSave(userId, key, value)
-        return when (result) {
-            1 -> {
-                // 只有变化才通知
-                notifyChanged(TYPE_UPDATE, userId, key, value)
-                1
+        return counted("update") {
+            if (values == null) return -1
+            val userId = values.getAsString(PARAMS_USER_ID) ?: EMDBDao.DB_USER_DEFAULT
+            val key = values.getAsString(PARAMS_KEY) ?: return -1
+            val value = values.getAsString(PARAMS_VALUE) ?: ""
+
+            val result = EMDBManager.providerCheckSave(userId, key, value)
+            return when (result) {
+                1 -> {
+                    // 只有变化才通知
+                    notifyChanged(TYPE_UPDATE, userId, key, value)
+                    1
+                }
+                0 -> 1
+                else -> -1
             }
-            0 -> 1
-            else -> -1
         }
     }
 
@@ -239,19 +398,21 @@ class EMDBKVProvider : ContentProvider() {
         selection: String?,
         selectionArgs: Array<out String?>?
     ): Int {
-        if (selectionArgs.isNullOrEmpty() || selectionArgs.size < 2) return -1
-        val userId = selectionArgs[0] ?: EMDBDao.DB_USER_DEFAULT
-        val key = selectionArgs[1]
-        val result = if (key.isNotNullOrEmpty()) {
-            EMDBManager.deleteKeyValue(key!!, userId)
-        } else {
-            EMDBManager.clearKeyValue(userId)
-        }
-        return if (result) {
-            notifyChanged(TYPE_DELETE, userId, key, null)
-            1
-        } else {
-            -1
+        return counted("delete") {
+            if (selectionArgs.isNullOrEmpty() || selectionArgs.size < 2) return -1
+            val userId = selectionArgs[0] ?: EMDBDao.DB_USER_DEFAULT
+            val key = selectionArgs[1]
+            val result = if (key.isNotNullOrEmpty()) {
+                EMDBManager.deleteKeyValue(key!!, userId)
+            } else {
+                EMDBManager.clearKeyValue(userId)
+            }
+            return if (result) {
+                notifyChanged(TYPE_DELETE, userId, key, null)
+                1
+            } else {
+                -1
+            }
         }
     }
 
@@ -259,11 +420,53 @@ class EMDBKVProvider : ContentProvider() {
         return null
     }
 
+    /**
+     * 快照读取，仅支持PATH_SNAPSHOT只读
+     * 数据在调用时一次性查出（保证一致性），再由后台线程按EMKVSnapshot格式写入管道
+     * 写入失败时通过closeWithError告知读取方
+     */
+    override fun openFile(uri: Uri, mode: String): ParcelFileDescriptor? {
+        return counted("openFile") {
+            if (uri.pathSegments.firstOrNull() != PATH_SNAPSHOT || mode != "r") {
+                throw FileNotFoundException("unsupported uri: $uri mode: $mode")
+            }
+            val userId = uri.getQueryParameter(PARAMS_USER_ID) ?: EMDBDao.DB_USER_DEFAULT
+            val prefix = uri.getQueryParameter(PARAMS_PREFIX) ?: ""
+            val values = EMDBManager.getByPrefix(prefix, userId)
+
+            val pipe = try {
+                ParcelFileDescriptor.createReliablePipe()
+            } catch (e: IOException) {
+                throw FileNotFoundException("create pipe error: ${e.message}")
+            }
+            val readSide = pipe[0]
+            val writeSide = pipe[1]
+            snapshotExecutor.execute {
+                try {
+                    ParcelFileDescriptor.AutoCloseOutputStream(writeSide).use {
+                        EMKVSnapshot.write(it, values)
+                    }
+                } catch (e: IOException) {
+                    Log.e(TAG, "write snapshot error: ${e.message}")
+                    try {
+                        writeSide.closeWithError(e.message ?: "write snapshot error")
+                    } catch (_: IOException) {
+                    }
+                }
+            }
+            return readSide
+        }
+    }
+
     /**
      * @param method 指定方法名
      * @param extras 指定参数
      */
     override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
+        return counted(method) { handleCall(method, extras) }
+    }
+
+    private fun handleCall(method: String, extras: Bundle?): Bundle? {
         val bundle = Bundle()
         val userId = extras?.getString(PARAMS_USER_ID)
         val key = extras?.getString(PARAMS_KEY)
@@ -285,8 +488,9 @@ class EMDBKVProvider : ContentProvider() {
                 if (key.isNullOrEmpty()) return null
 
                 val value = extras.getString(PARAMS_VALUE) ?: ""
+                val ttlMillis = extras.getLong(PARAMS_TTL, 0L)
                 val userId = userId ?: EMDBDao.DB_USER_DEFAULT
-                val result = EMDBManager.saveValueWithKey(key, value, userId)
+                val result = EMDBManager.saveValueWithKey(key, value, userId, ttlMillis)
                 if (!result) return null
 
                 bundle.putBoolean(RESULT_STATUS, true)
@@ -321,6 +525,84 @@ class EMDBKVProvider : ContentProvider() {
                 return bundle
             }
 
+            METHOD_GET_LONG -> {
+                if (key.isNullOrEmpty()) return null
+
+                val defaultValue = extras.getLong(PARAMS_DEFAULT_VALUE, 0L)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.getLong(key, defaultValue, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putLong(RESULT_VALUE, result)
+                return bundle
+            }
+
+            METHOD_PUT_LONG -> {
+                if (key.isNullOrEmpty()) return null
+
+                val value = extras.getLong(PARAMS_VALUE, 0L)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.saveLong(key, value, userId)
+                if (!result) return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, true)
+                notifyChanged(TYPE_UPDATE, userId, key, value.toString())
+                return bundle
+            }
+
+            METHOD_GET_DOUBLE -> {
+                if (key.isNullOrEmpty()) return null
+
+                val defaultValue = extras.getDouble(PARAMS_DEFAULT_VALUE, 0.0)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.getDouble(key, defaultValue, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putDouble(RESULT_VALUE, result)
+                return bundle
+            }
+
+            METHOD_PUT_DOUBLE -> {
+                if (key.isNullOrEmpty()) return null
+
+                val value = extras.getDouble(PARAMS_VALUE, 0.0)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.saveDouble(key, value, userId)
+                if (!result) return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, true)
+                notifyChanged(TYPE_UPDATE, userId, key, value.toString())
+                return bundle
+            }
+
+            METHOD_GET_BYTES -> {
+                if (key.isNullOrEmpty()) return null
+
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.getBytes(key, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putByteArray(RESULT_VALUE, result)
+                return bundle
+            }
+
+            METHOD_PUT_BYTES -> {
+                if (key.isNullOrEmpty()) return null
+
+                val value = extras.getByteArray(PARAMS_VALUE) ?: return null
+                val ttlMillis = extras.getLong(PARAMS_TTL, 0L)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.saveBytes(key, value, userId, ttlMillis)
+                if (!result) return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, true)
+                notifyChanged(TYPE_UPDATE, userId, key, null)
+                return bundle
+            }
+
             METHOD_DELETE -> {
                 if (key.isNullOrEmpty()) return null
                 val userId = userId ?: EMDBDao.DB_USER_DEFAULT
@@ -334,6 +616,54 @@ class EMDBKVProvider : ContentProvider() {
                 return bundle
             }
 
+            METHOD_GET_VALUES -> {
+                val keys = extras?.getStringArrayList(PARAMS_KEYS) ?: return null
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.getValues(keys, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBundle(RESULT_VALUE, result.toBundle())
+                return bundle
+            }
+
+            METHOD_GET_BY_PREFIX -> {
+                val prefix = extras?.getString(PARAMS_PREFIX) ?: ""
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.getByPrefix(prefix, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBundle(RESULT_VALUE, result.toBundle())
+                return bundle
+            }
+
+            METHOD_PUT_ALL -> {
+                val values = extras?.getBundle(PARAMS_VALUES) ?: return null
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val map = HashMap<String, String>(values.size())
+                values.keySet().forEach { k ->
+                    if (k.isNotEmpty()) map[k] = values.getString(k) ?: ""
+                }
+                val result = EMDBManager.saveAll(map, userId)
+                if (!result) return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, true)
+                map.forEach { (k, v) -> notifyChanged(TYPE_UPDATE, userId, k, v) }
+                return bundle
+            }
+
+            METHOD_DELETE_ALL -> {
+                val keys = extras?.getStringArrayList(PARAMS_KEYS) ?: return null
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.deleteAll(keys, userId)
+                if (!result) return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, true)
+                keys.forEach { k -> notifyChanged(TYPE_DELETE, userId, k, null) }
+                return bundle
+            }
+
             METHOD_CLEAR -> {
                 val result = EMDBManager.clearKeyValue(userId)
                 if (!result) return null
@@ -343,11 +673,64 @@ class EMDBKVProvider : ContentProvider() {
                 notifyChanged(TYPE_CLEAR, userId, null, null)
                 return bundle
             }
+            METHOD_COMPARE_AND_SET -> {
+                if (key.isNullOrEmpty()) return null
+
+                val expected = extras.getString(PARAMS_EXPECTED)
+                val value = extras.getString(PARAMS_VALUE) ?: return null
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.compareAndSet(key, expected, value, userId)
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putBoolean(RESULT_VALUE, result)
+                if (result) notifyChanged(TYPE_UPDATE, userId, key, value)
+                return bundle
+            }
+
+            METHOD_INCREMENT -> {
+                if (key.isNullOrEmpty()) return null
+
+                val delta = extras.getLong(PARAMS_DELTA, 1L)
+                val userId = userId ?: EMDBDao.DB_USER_DEFAULT
+                val result = EMDBManager.increment(key, delta, userId) ?: return null
+
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putLong(RESULT_VALUE, result)
+                notifyChanged(TYPE_UPDATE, userId, key, result.toString())
+                return bundle
+            }
+
+            METHOD_NOTIFY_STATS -> {
+                val stats = getNotifyStats() ?: return null
+                bundle.putBoolean(RESULT_STATUS, true)
+                bundle.putLong(RESULT_SUBMITTED, stats.submitted)
+                bundle.putLong(RESULT_DISPATCHED, stats.dispatched)
+                bundle.putLong(RESULT_MERGED, stats.merged)
+                return bundle
+            }
             else -> return null
         }
     }
 
 
+    /**
+     * 记录Provider调用次数和处理耗时，见EMDBMetricsListener.onProviderCall
+     */
+    private inline fun <T> counted(method: String, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            EMDBMetrics.onProviderCall(method, System.nanoTime() - start)
+        }
+    }
+
+    private fun Map<String, String>.toBundle(): Bundle {
+        val result = Bundle(size)
+        forEach { (k, v) -> result.putString(k, v) }
+        return result
+    }
+
     /**
      * content://com.emlibrary.db/type?userId=userId&key=key&value=value
      * 返回的uri中 userId、key、value均为可选参数 value可为空串
@@ -358,6 +741,8 @@ class EMDBKVProvider : ContentProvider() {
      * val userId = uri.getQueryParameter("userId")
      * val key = uri.getQueryParameter("key")
      * val value = uri.getQueryParameter("value")
+     *
+     * 通知不会立即发送，由EMKVNotifier在短时间窗口内合并后发送，同一key只发送最后一次变化
      */
     private fun notifyChanged(type: String, userId: String?, key: String?, value: String?): Uri {
         val resultUri = BASE_URI.buildUpon()
@@ -369,7 +754,12 @@ class EMDBKVProvider : ContentProvider() {
             }
             .build()
 
-        context?.contentResolver?.notifyChange(resultUri, null)
+        val currentNotifier = notifier
+        if (currentNotifier != null) {
+            currentNotifier.submit(userId, key, resultUri)
+        } else {
+            context?.contentResolver?.notifyChange(resultUri, null)
+        }
         return resultUri
     }
 }
\ No newline at end of file
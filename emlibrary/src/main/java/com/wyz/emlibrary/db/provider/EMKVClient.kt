@@ -0,0 +1,357 @@
+package com.wyz.emlibrary.db.provider
+
+import android.content.ContentResolver
+import android.content.Context
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Bundle
+import android.util.Log
+import android.os.ParcelFileDescriptor
+import android.util.LruCache
+import com.wyz.emlibrary.db.EMDBDao
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * EMDBKVProvider客户端（非Provider进程使用）
+ * 在调用方进程内缓存读取结果，重复读取同一key只需一次哈希查找，不再走binder + SQLite
+ *
+ * 缓存正确性：
+ * 1.注册Provider的变化通知，收到update/delete时移除对应key，收到clear时移除对应user（或全部）
+ * 2.通知中带有序号（PARAMS_SEQ）和Provider实例标识（PARAMS_EPOCH），序号不连续或Provider重启时清空全部缓存
+ * 3.读取Provider前记录本地版本号，期间收到任何通知则不回填缓存，避免旧值覆盖
+ * ⚠️ Provider进程内直接调用EMDBManager写入不会发出通知，此类数据请勿通过EMKVClient读取
+ *
+ * val client = EMKVClient(context)
+ * val token = client.getString("token", "", "1001")
+ * client.release()
+ *
+ * @param maxSize 最多缓存的key数量
+ */
+class EMKVClient(
+    context: Context,
+    maxSize: Int = DEFAULT_CACHE_SIZE
+) {
+
+    companion object {
+        private const val TAG = "EMKVClient"
+        const val DEFAULT_CACHE_SIZE = 256
+        private const val STR_NUM_ONE = "1"
+
+        /**
+         * Provider中不存在该key的占位值
+         */
+        private val ABSENT = Any()
+
+        /**
+         * 读取EMDBKVProvider.openFile返回的快照管道，读取完成后关闭pfd
+         * @throws IOException 写入端异常或数据被截断
+         */
+        @Throws(IOException::class)
+        fun readSnapshot(pfd: ParcelFileDescriptor): Map<String, String> {
+            return ParcelFileDescriptor.AutoCloseInputStream(pfd).use {
+                val result = EMKVSnapshot.read(it)
+                pfd.checkError()
+                result
+            }
+        }
+    }
+
+    private data class CacheKey(val userId: String, val key: String)
+
+    private val resolver: ContentResolver = context.applicationContext.contentResolver
+
+    private val cache = LruCache<CacheKey, Any>(maxSize)
+
+    /**
+     * 每次失效时递增
+     */
+    private val version = AtomicLong()
+
+    /**
+     * 上一次收到的通知序号与Provider实例标识
+     */
+    private var lastSeq = -1L
+    private var lastEpoch: String? = null
+
+    /**
+     * 在binder线程直接回调，不经过主线程
+     */
+    private val observer = object : ContentObserver(null) {
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            onProviderChanged(uri)
+        }
+    }
+
+    init {
+        resolver.registerContentObserver(EMDBKVProvider.BASE_URI, true, observer)
+    }
+
+    // =============================== 读取 ===============================
+
+    fun getString(key: String, defaultValue: String = "", userId: String = EMDBDao.DB_USER_DEFAULT): String {
+        return read(key, userId) ?: defaultValue
+    }
+
+    fun getBoolean(key: String, defaultValue: Boolean = false, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        val result = read(key, userId) ?: return defaultValue
+        return result == STR_NUM_ONE
+    }
+
+    fun getLong(key: String, defaultValue: Long = 0L, userId: String = EMDBDao.DB_USER_DEFAULT): Long {
+        val result = read(key, userId) ?: return defaultValue
+        return result.toLongOrNull() ?: result.toDoubleOrNull()?.toLong() ?: defaultValue
+    }
+
+    fun getDouble(key: String, defaultValue: Double = 0.0, userId: String = EMDBDao.DB_USER_DEFAULT): Double {
+        return read(key, userId)?.toDoubleOrNull() ?: defaultValue
+    }
+
+    /**
+     * 批量读取，未命中的key合并为一次IPC
+     * @return 不存在的key不在结果中
+     */
+    fun getValues(keys: Collection<String>, userId: String = EMDBDao.DB_USER_DEFAULT): Map<String, String> {
+        val result = HashMap<String, String>(keys.size)
+        val missKeys = ArrayList<String>()
+        keys.forEach { key ->
+            val cached = cache.get(CacheKey(userId, key))
+            when {
+                cached == null -> missKeys.add(key)
+                cached !== ABSENT -> result[key] = cached as String
+            }
+        }
+        if (missKeys.isEmpty()) return result
+
+        val readVersion = version.get()
+        val values = queryValues(missKeys, userId) ?: return result
+        missKeys.forEach { key ->
+            val value = values[key]
+            if (value != null) result[key] = value
+            putIfUnchanged(CacheKey(userId, key), value, readVersion)
+        }
+        return result
+    }
+
+    /**
+     * 通过管道读取指定user下以prefix开头的所有数据，适合整个命名空间等大数据量读取
+     * 读取结果会回填缓存
+     * @param prefix 为空时读取该user下所有数据
+     * @return 读取失败时为空
+     */
+    fun getSnapshot(userId: String = EMDBDao.DB_USER_DEFAULT, prefix: String = ""): Map<String, String> {
+        val readVersion = version.get()
+        val result = try {
+            val pfd = resolver.openFileDescriptor(EMDBKVProvider.snapshotUri(userId, prefix), "r")
+                ?: return emptyMap()
+            readSnapshot(pfd)
+        } catch (e: Exception) {
+            Log.e(TAG, "getSnapshot error: ${e.message}")
+            return emptyMap()
+        }
+        result.forEach { (key, value) -> putIfUnchanged(CacheKey(userId, key), value, readVersion) }
+        return result
+    }
+
+    // =============================== 写入 ===============================
+
+    fun putString(key: String, value: String, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return write(EMDBKVProvider.METHOD_PUT_STRING, key, userId) { putString(EMDBKVProvider.PARAMS_VALUE, value) }
+    }
+
+    fun putBoolean(key: String, value: Boolean, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return write(EMDBKVProvider.METHOD_PUT_BOOLEAN, key, userId) { putBoolean(EMDBKVProvider.PARAMS_VALUE, value) }
+    }
+
+    fun putLong(key: String, value: Long, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return write(EMDBKVProvider.METHOD_PUT_LONG, key, userId) { putLong(EMDBKVProvider.PARAMS_VALUE, value) }
+    }
+
+    fun putDouble(key: String, value: Double, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return write(EMDBKVProvider.METHOD_PUT_DOUBLE, key, userId) { putDouble(EMDBKVProvider.PARAMS_VALUE, value) }
+    }
+
+    /**
+     * 比较并设置，比较和写入在Provider进程内一次完成，可用于跨进程的标志位、计数器
+     * @param expected 为null表示要求key不存在；为""时值为""或key不存在（从未写入的标志位）都视为匹配
+     * @return true 写入成功 false 当前值不符或调用失败
+     */
+    fun compareAndSet(
+        key: String,
+        expected: String?,
+        newValue: String,
+        userId: String = EMDBDao.DB_USER_DEFAULT
+    ): Boolean {
+        val extras = Bundle().apply {
+            putString(EMDBKVProvider.PARAMS_USER_ID, userId)
+            putString(EMDBKVProvider.PARAMS_KEY, key)
+            putString(EMDBKVProvider.PARAMS_VALUE, newValue)
+            if (expected != null) putString(EMDBKVProvider.PARAMS_EXPECTED, expected)
+        }
+        val result = try {
+            resolver.call(EMDBKVProvider.BASE_URI, EMDBKVProvider.METHOD_COMPARE_AND_SET, null, extras)
+                ?.getBoolean(EMDBKVProvider.RESULT_VALUE, false) ?: false
+        } catch (e: Exception) {
+            Log.e(TAG, "compareAndSet error: ${e.message}")
+            false
+        }
+        // 失败时本地缓存也可能是旧值
+        invalidate(CacheKey(userId, key))
+        return result
+    }
+
+    /**
+     * 原子自增（一次IPC）
+     * @return 自增后的值，null 调用失败
+     */
+    fun increment(key: String, delta: Long = 1L, userId: String = EMDBDao.DB_USER_DEFAULT): Long? {
+        val extras = Bundle().apply {
+            putString(EMDBKVProvider.PARAMS_USER_ID, userId)
+            putString(EMDBKVProvider.PARAMS_KEY, key)
+            putLong(EMDBKVProvider.PARAMS_DELTA, delta)
+        }
+        val result = try {
+            resolver.call(EMDBKVProvider.BASE_URI, EMDBKVProvider.METHOD_INCREMENT, null, extras)
+                ?.takeIf { it.getBoolean(EMDBKVProvider.RESULT_STATUS, false) }
+                ?.getLong(EMDBKVProvider.RESULT_VALUE, 0L)
+        } catch (e: Exception) {
+            Log.e(TAG, "increment error: ${e.message}")
+            null
+        }
+        invalidate(CacheKey(userId, key))
+        return result
+    }
+
+    fun delete(key: String, userId: String = EMDBDao.DB_USER_DEFAULT): Boolean {
+        return write(EMDBKVProvider.METHOD_DELETE, key, userId) {}
+    }
+
+    /**
+     * 注销通知并清空缓存，之后不应再使用该client
+     */
+    fun release() {
+        resolver.unregisterContentObserver(observer)
+        invalidateAll()
+    }
+
+    // =============================== 内部 ===============================
+
+    private fun read(key: String, userId: String): String? {
+        val cacheKey = CacheKey(userId, key)
+        val cached = cache.get(cacheKey)
+        if (cached != null) {
+            return if (cached === ABSENT) null else cached as String
+        }
+
+        val readVersion = version.get()
+        // 读取失败（Provider不可用）时不缓存
+        val values = queryValues(listOf(key), userId) ?: return null
+        val value = values[key]
+        putIfUnchanged(cacheKey, value, readVersion)
+        return value
+    }
+
+    /**
+     * 通过METHOD_GET_VALUES读取，可以区分"不存在"与"空串"
+     * @return null 调用失败
+     */
+    private fun queryValues(keys: List<String>, userId: String): Map<String, String>? {
+        val extras = Bundle().apply {
+            putString(EMDBKVProvider.PARAMS_USER_ID, userId)
+            putStringArrayList(EMDBKVProvider.PARAMS_KEYS, ArrayList(keys))
+        }
+        return try {
+            val bundle = resolver.call(EMDBKVProvider.BASE_URI, EMDBKVProvider.METHOD_GET_VALUES, null, extras)
+                ?.getBundle(EMDBKVProvider.RESULT_VALUE) ?: return null
+            val result = HashMap<String, String>(bundle.size())
+            bundle.keySet().forEach { k -> bundle.getString(k)?.let { result[k] = it } }
+            result
+        } catch (e: Exception) {
+            Log.e(TAG, "queryValues error: ${e.message}")
+            null
+        }
+    }
+
+    private fun putIfUnchanged(cacheKey: CacheKey, value: String?, readVersion: Long) {
+        synchronized(this) {
+            if (version.get() != readVersion) return
+            cache.put(cacheKey, value ?: ABSENT)
+        }
+    }
+
+    /**
+     * 写入后立即使本地缓存失效，不等待Provider通知
+     */
+    private fun write(method: String, key: String, userId: String, params: Bundle.() -> Unit): Boolean {
+        val extras = Bundle().apply {
+            putString(EMDBKVProvider.PARAMS_USER_ID, userId)
+            putString(EMDBKVProvider.PARAMS_KEY, key)
+            params()
+        }
+        val result = try {
+            resolver.call(EMDBKVProvider.BASE_URI, method, null, extras)
+                ?.getBoolean(EMDBKVProvider.RESULT_STATUS, false) ?: false
+        } catch (e: Exception) {
+            Log.e(TAG, "write $method error: ${e.message}")
+            false
+        }
+        invalidate(CacheKey(userId, key))
+        return result
+    }
+
+    private fun onProviderChanged(uri: Uri?) {
+        if (uri == null) {
+            invalidateAll()
+            return
+        }
+        if (!checkSequence(uri)) {
+            invalidateAll()
+            return
+        }
+        val userId = uri.getQueryParameter(EMDBKVProvider.PARAMS_USER_ID)
+        val key = uri.getQueryParameter(EMDBKVProvider.PARAMS_KEY)
+        when {
+            userId == null -> invalidateAll()
+            key.isNullOrEmpty() -> invalidateUser(userId)
+            else -> invalidate(CacheKey(userId, key))
+        }
+    }
+
+    /**
+     * @return false 序号不连续（有通知丢失）或Provider已重启
+     */
+    private fun checkSequence(uri: Uri): Boolean {
+        val seq = uri.getQueryParameter(EMDBKVProvider.PARAMS_SEQ)?.toLongOrNull() ?: return true
+        val epoch = uri.getQueryParameter(EMDBKVProvider.PARAMS_EPOCH)
+        synchronized(this) {
+            val continuous = epoch == lastEpoch && seq == lastSeq + 1
+            val first = lastEpoch == null
+            lastSeq = seq
+            lastEpoch = epoch
+            return first || continuous
+        }
+    }
+
+    private fun invalidate(cacheKey: CacheKey) {
+        synchronized(this) {
+            version.incrementAndGet()
+            cache.remove(cacheKey)
+        }
+    }
+
+    private fun invalidateUser(userId: String) {
+        synchronized(this) {
+            version.incrementAndGet()
+            cache.snapshot().keys.forEach {
+                if (it.userId == userId) cache.remove(it)
+            }
+        }
+    }
+
+    private fun invalidateAll() {
+        synchronized(this) {
+            version.incrementAndGet()
+            cache.evictAll()
+        }
+    }
+}
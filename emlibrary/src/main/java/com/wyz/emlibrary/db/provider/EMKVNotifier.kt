@@ -0,0 +1,110 @@
+package com.wyz.emlibrary.db.provider
+
+import android.content.ContentResolver
+import android.net.Uri
+import android.os.Handler
+import android.os.HandlerThread
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Provider数据变化通知合并器
+ * 在windowMillis时间窗口内收集变化，同一(userId, key)只保留最后一次通知，窗口结束后统一notifyChange
+ * 清空通知会覆盖窗口内同一userId（userId为空时覆盖全部）的其他通知
+ * 避免循环写入时每次都向所有观察者进程发送binder调用
+ * 实际发送的uri会追加连续递增的PARAMS_SEQ与实例标识PARAMS_EPOCH，接收方据此判断是否有通知丢失
+ *
+ * @param resolver 发送通知使用的ContentResolver
+ * @param windowMillis 合并窗口
+ */
+internal class EMKVNotifier(
+    private val resolver: () -> ContentResolver?,
+    private val windowMillis: Long = DEFAULT_WINDOW_MILLIS
+) {
+
+    companion object {
+        const val DEFAULT_WINDOW_MILLIS = 50L
+    }
+
+    /**
+     * key为空表示该userId下的整体变化（清空）
+     */
+    private data class ChangeKey(val userId: String?, val key: String?)
+
+    /**
+     * 窗口内待发送的通知，保持先后顺序
+     */
+    private val pending = LinkedHashMap<ChangeKey, Uri>()
+    private var scheduled = false
+
+    private val handler by lazy {
+        val thread = HandlerThread("EMKVNotifier").apply { start() }
+        Handler(thread.looper)
+    }
+
+    /**
+     * 实例标识，Provider进程重启后变化
+     */
+    private val epoch = System.currentTimeMillis().toString()
+    private var seq = 0L
+
+    private val submittedCount = AtomicLong()
+    private val dispatchedCount = AtomicLong()
+
+    private val dispatchRunnable = Runnable { dispatch() }
+
+    fun submit(userId: String?, key: String?, uri: Uri) {
+        submittedCount.incrementAndGet()
+        synchronized(pending) {
+            val wholeUser = key.isNullOrEmpty()
+            val changeKey = ChangeKey(userId, if (wholeUser) null else key)
+            if (wholeUser) {
+                // 整体变化覆盖同一userId下的单key通知
+                pending.keys.removeAll { userId == null || it.userId == userId }
+            }
+            // 重新放到末尾，保证发送顺序与最后一次变化一致
+            pending.remove(changeKey)
+            pending[changeKey] = uri
+            if (!scheduled) {
+                scheduled = true
+                handler.postDelayed(dispatchRunnable, windowMillis)
+            }
+        }
+    }
+
+    private fun dispatch() {
+        val uris = synchronized(pending) {
+            scheduled = false
+            ArrayList(pending.values).also { pending.clear() }
+        }
+        val contentResolver = resolver() ?: return
+        uris.forEach {
+            // 只在handler线程中访问seq
+            val uri = it.buildUpon()
+                .appendQueryParameter(EMDBKVProvider.PARAMS_SEQ, (seq++).toString())
+                .appendQueryParameter(EMDBKVProvider.PARAMS_EPOCH, epoch)
+                .build()
+            contentResolver.notifyChange(uri, null)
+            dispatchedCount.incrementAndGet()
+        }
+    }
+
+    fun stats(): EMKVNotifyStats {
+        return EMKVNotifyStats(submittedCount.get(), dispatchedCount.get())
+    }
+}
+
+/**
+ * 通知合并统计
+ * @param submitted 提交的通知数
+ * @param dispatched 实际发送的notifyChange数
+ */
+data class EMKVNotifyStats(
+    val submitted: Long,
+    val dispatched: Long
+) {
+    /**
+     * 被合并掉的通知数（含窗口内尚未发送的）
+     */
+    val merged: Long
+        get() = submitted - dispatched
+}
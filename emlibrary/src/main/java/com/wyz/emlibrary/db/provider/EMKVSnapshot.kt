@@ -0,0 +1,74 @@
+package com.wyz.emlibrary.db.provider
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Provider快照的流式编码，用于通过管道传输大量数据（绕过Bundle的binder事务大小限制）
+ *
+ * 格式：
+ * MAGIC(int) | VERSION(int) | count(int) | [keyLength(int) keyBytes valueLength(int) valueBytes] * count | END(int)
+ * 字符串均为UTF-8，结尾标记用于发现写入端中途异常导致的截断
+ */
+internal object EMKVSnapshot {
+
+    private const val MAGIC = 0x454D4B56
+    private const val VERSION = 1
+    private const val END = -1
+    private const val BUFFER_SIZE = 16 * 1024
+
+    /**
+     * 写入完成后会flush，但不会关闭output
+     */
+    @Throws(IOException::class)
+    fun write(output: OutputStream, values: Map<String, String>) {
+        val out = DataOutputStream(BufferedOutputStream(output, BUFFER_SIZE))
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeInt(values.size)
+        values.forEach { (key, value) ->
+            writeString(out, key)
+            writeString(out, value)
+        }
+        out.writeInt(END)
+        out.flush()
+    }
+
+    /**
+     * @throws IOException 格式错误或数据被截断
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream): Map<String, String> {
+        val inp = DataInputStream(BufferedInputStream(input, BUFFER_SIZE))
+        if (inp.readInt() != MAGIC) throw IOException("invalid snapshot")
+        val version = inp.readInt()
+        if (version != VERSION) throw IOException("unsupported snapshot version: $version")
+        val count = inp.readInt()
+        val result = HashMap<String, String>(count)
+        repeat(count) {
+            val key = readString(inp)
+            result[key] = readString(inp)
+        }
+        if (inp.readInt() != END) throw IOException("snapshot truncated")
+        return result
+    }
+
+    private fun writeString(out: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun readString(inp: DataInputStream): String {
+        val length = inp.readInt()
+        if (length < 0) throw IOException("invalid length: $length")
+        val bytes = ByteArray(length)
+        inp.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
@@ -0,0 +1,102 @@
+package com.wyz.emlibrary.download
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * 下载写文件用的缓冲区池，按容量分级复用，任务/分段之间不再重复分配缓冲区
+ * copy()用input.read(array, off, len)直接读入池中的数组，读满一块后包装为ByteBuffer按偏移写入FileChannel，进度按块回调而不是每次read回调
+ * ⚠️ 不使用Channels.newChannel(input)：它每次最多读8KB到自己的临时数组再拷贝到目标缓冲区
+ */
+internal object EMDownloadBuffers {
+
+    const val MIN_SIZE = 16 * 1024
+    const val MAX_SIZE = 512 * 1024
+    const val INITIAL_SIZE = 64 * 1024
+
+    /**
+     * 读满一块耗时低于此值时缓冲区翻倍（网络快，减少写文件和进度回调次数）
+     */
+    const val GROW_NANOS = 50_000_000L
+
+    /**
+     * 读满一块耗时高于此值时缓冲区减半（网络慢，保证进度更新频率）
+     */
+    const val SHRINK_NANOS = 500_000_000L
+
+    private const val MAX_POOLED_PER_SIZE = 8
+
+    private val pools = ConcurrentHashMap<Int, ConcurrentLinkedQueue<ByteArray>>()
+
+    fun obtain(size: Int): ByteArray {
+        return pools[size]?.poll() ?: ByteArray(size)
+    }
+
+    fun recycle(array: ByteArray) {
+        val pool = pools.computeIfAbsent(array.size) { ConcurrentLinkedQueue() }
+        if (pool.size < MAX_POOLED_PER_SIZE) pool.offer(array)
+    }
+
+    /**
+     * 把input写入channel的[position, position + limit)，缓冲区大小按读满一块的耗时在MIN_SIZE~MAX_SIZE间调整
+     * @param limit 最多写入的字节数，不会多读超出的部分（分段下载时属于下一个分段）；不限制时传Long.MAX_VALUE
+     * @param isActive 每次read前检查，返回false时写完已读部分后停止
+     * @param onChunk 每写完一块回调一次，参数为本块字节数
+     * @return 写入的字节数
+     */
+    inline fun copy(
+        input: InputStream,
+        channel: FileChannel,
+        position: Long,
+        limit: Long,
+        isActive: () -> Boolean,
+        onChunk: (Int) -> Unit
+    ): Long {
+        var size = INITIAL_SIZE
+        var array = obtain(size)
+        var written = 0L
+        try {
+            var eof = false
+            while (!eof && written < limit && isActive()) {
+                val target = minOf(size.toLong(), limit - written).toInt()
+                var count = 0
+                val begin = System.nanoTime()
+                // 读满一块或到达结尾
+                while (count < target && isActive()) {
+                    val read = input.read(array, count, target - count)
+                    if (read == -1) {
+                        eof = true
+                        break
+                    }
+                    count += read
+                }
+                val elapsed = System.nanoTime() - begin
+                if (count > 0) {
+                    val buffer = ByteBuffer.wrap(array, 0, count)
+                    var offset = position + written
+                    while (buffer.hasRemaining()) {
+                        offset += channel.write(buffer, offset)
+                    }
+                    written += count
+                    onChunk(count)
+                }
+                val newSize = when {
+                    count == size && elapsed < GROW_NANOS -> minOf(size * 2, MAX_SIZE)
+                    elapsed > SHRINK_NANOS -> maxOf(size / 2, MIN_SIZE)
+                    else -> size
+                }
+                if (newSize != size) {
+                    recycle(array)
+                    size = newSize
+                    array = obtain(size)
+                }
+            }
+        } finally {
+            recycle(array)
+        }
+        return written
+    }
+}
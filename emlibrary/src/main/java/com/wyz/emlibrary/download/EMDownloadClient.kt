@@ -1,6 +1,9 @@
 package com.wyz.emlibrary.download
 
+import kotlinx.coroutines.suspendCancellableCoroutine
 import java.io.InputStream
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
 interface EMDownloadClient {
 
@@ -11,5 +14,44 @@ interface EMDownloadClient {
         error: (Exception) -> Unit
     )
 
+    /**
+     * 带状态码和响应头的请求，分段下载探测文件大小、校验206时使用
+     * 默认实现基于request()，状态码为EMDownloadResponse.CODE_UNKNOWN，此时不会启用分段下载
+     */
+    fun requestResponse(
+        url: String,
+        headers: Map<String, String>,
+        callback: (EMDownloadResponse) -> Unit,
+        error: (Exception) -> Unit
+    ) {
+        request(url, headers, { input, contentLength ->
+            callback(EMDownloadResponse(EMDownloadResponse.CODE_UNKNOWN, emptyMap(), input, contentLength))
+        }, error)
+    }
+
+    /**
+     * 分段下载时每个分段使用独立的连接，返回一个新的client实例（可共享连接池）
+     * @return null 不支持，分段下载回退为单连接
+     */
+    fun fork(): EMDownloadClient? = null
+
     fun cancel()
-}
\ No newline at end of file
+}
+
+/**
+ * 挂起等待响应，协程取消时取消请求
+ */
+internal suspend fun EMDownloadClient.await(url: String, headers: Map<String, String>): EMDownloadResponse {
+    return suspendCancellableCoroutine { cont ->
+        cont.invokeOnCancellation { cancel() }
+        requestResponse(url, headers, { response ->
+            if (cont.isActive) {
+                cont.resume(response)
+            } else {
+                try { response.body.close() } catch (_: Exception) {}
+            }
+        }, { e ->
+            if (cont.isActive) cont.resumeWithException(e)
+        })
+    }
+}
@@ -0,0 +1,146 @@
+package com.wyz.emlibrary.download
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.Properties
+
+/**
+ * 下载任务日志：记录未完成任务的url、文件、排队参数、预期大小和校验信息（ETag/Last-Modified），进程被杀后由EMDownloadManager.restore()恢复
+ * 所有任务保存在一个Properties文件中，键为"taskId.字段"；只在任务状态变化时整体重写（先写临时文件再改名），不记录下载进度
+ * 单连接下载的进度即文件长度，分段下载的进度见EMDownloadSegmentPlan
+ */
+internal class EMDownloadJournal(private val file: File) {
+
+    companion object {
+        const val STATE_WAITING = "waiting"
+        const val STATE_PAUSED = "paused"
+
+        private const val FIELD_URL = "url"
+        private const val FIELD_FILE = "file"
+        private const val FIELD_SEGMENT_COUNT = "segmentCount"
+        private const val FIELD_PRIORITY = "priority"
+        private const val FIELD_GROUP = "group"
+        private const val FIELD_STATE = "state"
+        private const val FIELD_TOTAL = "total"
+        private const val FIELD_SEQ = "seq"
+        private const val FIELD_ETAG = "etag"
+        private const val FIELD_LAST_MODIFIED = "lastModified"
+    }
+
+    /**
+     * @param state STATE_WAITING 恢复后自动排队；STATE_PAUSED 恢复后等待调用resume()
+     * @param total 预期文件大小，未知时为-1
+     * @param seq 创建顺序，恢复时按此顺序排队；新条目由put()分配
+     * @param etag 首次响应的校验信息，续传时作为If-Range
+     */
+    class Entry(
+        val id: String,
+        val url: String,
+        val path: String,
+        val segmentCount: Int,
+        val priority: Int,
+        val group: String?,
+        var state: String,
+        var total: Long,
+        var seq: Long = 0L,
+        var etag: String? = null,
+        var lastModified: String? = null
+    )
+
+    private val entries = LinkedHashMap<String, Entry>()
+
+    init {
+        load()
+    }
+
+    @Synchronized
+    fun all(): List<Entry> {
+        return entries.values.sortedBy { it.seq }
+    }
+
+    /**
+     * 添加或替换条目，seq在锁内分配，并发创建的任务不会得到相同的seq
+     */
+    @Synchronized
+    fun put(entry: Entry) {
+        entry.seq = (entries.values.maxOfOrNull { it.seq } ?: 0L) + 1
+        entries[entry.id] = entry
+        save()
+    }
+
+    /**
+     * 修改已有条目，不存在时忽略
+     */
+    @Synchronized
+    fun update(id: String, block: (Entry) -> Unit) {
+        val entry = entries[id] ?: return
+        block(entry)
+        save()
+    }
+
+    @Synchronized
+    fun remove(id: String) {
+        if (entries.remove(id) != null) save()
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        save()
+    }
+
+    private fun load() {
+        if (!file.exists()) return
+        try {
+            val properties = Properties()
+            FileInputStream(file).use { properties.load(it) }
+            properties.stringPropertyNames()
+                .filter { it.endsWith(".$FIELD_URL") }
+                .map { it.removeSuffix(".$FIELD_URL") }
+                .forEach { id ->
+                    fun field(name: String) = properties.getProperty("$id.$name")
+                    val entry = Entry(
+                        id = id,
+                        url = field(FIELD_URL) ?: return@forEach,
+                        path = field(FIELD_FILE) ?: return@forEach,
+                        segmentCount = field(FIELD_SEGMENT_COUNT)?.toIntOrNull() ?: 1,
+                        priority = field(FIELD_PRIORITY)?.toIntOrNull() ?: 0,
+                        group = field(FIELD_GROUP),
+                        state = field(FIELD_STATE) ?: STATE_PAUSED,
+                        total = field(FIELD_TOTAL)?.toLongOrNull() ?: -1L,
+                        seq = field(FIELD_SEQ)?.toLongOrNull() ?: 0L,
+                        etag = field(FIELD_ETAG),
+                        lastModified = field(FIELD_LAST_MODIFIED)
+                    )
+                    entries[id] = entry
+                }
+        } catch (_: Exception) {
+            // 日志损坏时放弃恢复，不影响新任务
+            entries.clear()
+        }
+    }
+
+    private fun save() {
+        try {
+            val properties = Properties()
+            entries.values.forEach { entry ->
+                val id = entry.id
+                properties.setProperty("$id.$FIELD_URL", entry.url)
+                properties.setProperty("$id.$FIELD_FILE", entry.path)
+                properties.setProperty("$id.$FIELD_SEGMENT_COUNT", entry.segmentCount.toString())
+                properties.setProperty("$id.$FIELD_PRIORITY", entry.priority.toString())
+                entry.group?.let { properties.setProperty("$id.$FIELD_GROUP", it) }
+                properties.setProperty("$id.$FIELD_STATE", entry.state)
+                properties.setProperty("$id.$FIELD_TOTAL", entry.total.toString())
+                properties.setProperty("$id.$FIELD_SEQ", entry.seq.toString())
+                entry.etag?.let { properties.setProperty("$id.$FIELD_ETAG", it) }
+                entry.lastModified?.let { properties.setProperty("$id.$FIELD_LAST_MODIFIED", it) }
+            }
+            val temp = File(file.path + ".tmp")
+            FileOutputStream(temp).use { properties.store(it, null) }
+            temp.renameTo(file)
+        } catch (_: Exception) {
+        }
+    }
+}
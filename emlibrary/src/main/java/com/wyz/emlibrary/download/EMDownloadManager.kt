@@ -1,6 +1,8 @@
 package com.wyz.emlibrary.download
 
+import android.content.Context
 import java.io.File
+import java.util.PriorityQueue
 import java.util.concurrent.ConcurrentHashMap
 
 // 1.下载方法 可做下载前处理 下载完成后处理
@@ -12,7 +14,8 @@ import java.util.concurrent.ConcurrentHashMap
 //            .build()
 //        val downloadClient = OkHttpDownloadClient(client)
 //
-//        if (DownloadManager.getTasksCount().sign > 5) return
+//        // 同时下载数超过maxConcurrent的任务自动排队
+//        EMDownloadManager.maxConcurrent = 3
 //
 //        val file = File(cacheDir, "app.apk")
 //        if (file.exists()) file.delete()
@@ -107,43 +110,212 @@ import java.util.concurrent.ConcurrentHashMap
 
 /**
  * 文件下载管理器（支持断点续传）
+ * 同时下载的任务数不超过maxConcurrent，其余任务按优先级排队（相同优先级先进先出），有任务完成、失败、暂停、取消时自动开始下一个
+ * 通过getTask()拿到任务后直接调用pause()/resume()与调用本类的方法相同：暂停释放名额，恢复重新排队
+ * init()后未完成的任务记录在日志文件中（EMDownloadJournal），进程被杀后可通过restore()以相同的taskId恢复
  */
 object EMDownloadManager {
 
+    const val DEFAULT_MAX_CONCURRENT = 3
+
+    private const val JOURNAL_FILE_NAME = "emlibrary_download.journal"
+
+    /**
+     * 任务日志，未init时不记录
+     */
+    @Volatile
+    private var journal: EMDownloadJournal? = null
+
     private val tasks = ConcurrentHashMap<String, EMDownloadTask>()
 
+    /**
+     * 调度状态锁，保护waiting、running、seq
+     */
+    private val lock = Any()
+
+    /**
+     * 排队中的任务，priority大的在前，相同priority按入队顺序
+     */
+    private val waiting = PriorityQueue<Waiting>(
+        compareByDescending<Waiting> { it.task.priority }.thenBy { it.seq }
+    )
+
+    private class Waiting(val task: EMDownloadTask, val seq: Long)
+
+    private var seq = 0L
+
+    /**
+     * 正在下载的taskId
+     */
+    private val running = HashSet<String>()
+
+    /**
+     * 最大同时下载数，调大时立即开始排队中的任务；调小时不影响已开始的任务
+     */
+    @Volatile
+    var maxConcurrent = DEFAULT_MAX_CONCURRENT
+        set(value) {
+            require(value > 0) { "maxConcurrent必须大于0" }
+            field = value
+            schedule()
+        }
+
+    /**
+     * 加载任务日志，EMLibrary初始化时自动调用
+     */
+    fun init(context: Context) {
+        if (journal != null) return
+        synchronized(lock) {
+            if (journal == null) {
+                journal = EMDownloadJournal(File(context.applicationContext.filesDir, JOURNAL_FILE_NAME))
+            }
+        }
+    }
+
+    /**
+     * 恢复进程被杀前未完成的任务（taskId不变）
+     * 排队中、下载中的任务重新排队，已暂停、失败的任务需调用resume()
+     * @param clientFactory 每个任务一个client
+     * @param callbackFactory 恢复的任务在排队前添加的回调
+     * @return 恢复的任务，已在当前进程中的任务不重复恢复
+     */
+    fun restore(
+        clientFactory: () -> EMDownloadClient = { HttpURLEMDownloadClient() },
+        callbackFactory: (EMDownloadTask) -> EMDownloadTask.TaskCallback? = { null }
+    ): List<EMDownloadTask> {
+        val journal = journal ?: return emptyList()
+        val restored = ArrayList<EMDownloadTask>()
+        journal.all().forEach { entry ->
+            if (tasks.containsKey(entry.id)) return@forEach
+            val task = EMDownloadTask(
+                clientFactory(), entry.url, File(entry.path), entry.segmentCount, entry.priority, entry.group
+            ).apply {
+                taskId = entry.id
+                totalBytes = entry.total
+                etag = entry.etag
+                lastModified = entry.lastModified
+            }
+            callbackFactory(task)?.let { task.addTaskCallback(it) }
+            register(task)
+            restored.add(task)
+            if (entry.state == EMDownloadJournal.STATE_WAITING) enqueue(task)
+        }
+        return restored
+    }
+
+    /**
+     * 同一url下载到同一文件的任务已存在时不重复创建，添加回调后重新排队
+     * @param segmentCount 分段数，大于1时多连接并行下载，见EMDownloadTask
+     * @param priority 优先级，数值大的先开始
+     * @param group 分组，用于整组暂停、恢复
+     */
     fun create(
         client: EMDownloadClient = HttpURLEMDownloadClient(),
         url: String,
         file: File,
-        callback: EMDownloadTask.TaskCallback
-    ) {
-        val task = EMDownloadTask(client, url, file).apply {
-            addTaskReleaseCallback {
-                tasks.remove(taskId)
-            }
+        callback: EMDownloadTask.TaskCallback,
+        segmentCount: Int = 1,
+        priority: Int = 0,
+        group: String? = null
+    ): EMDownloadTask {
+        tasks[EMDownloadTask.stableId(url, file)]?.let { existing ->
+            existing.addTaskCallback(callback)
+            enqueue(existing)
+            return existing
+        }
+        val task = EMDownloadTask(client, url, file, segmentCount, priority, group).apply {
             addTaskCallback(callback)
-            start()
+        }
+        register(task)
+        journal?.put(
+            EMDownloadJournal.Entry(
+                id = task.taskId,
+                url = url,
+                path = file.absolutePath,
+                segmentCount = segmentCount,
+                priority = priority,
+                group = group,
+                state = EMDownloadJournal.STATE_WAITING,
+                total = -1L
+            )
+        )
+        enqueue(task)
+        return task
+    }
+
+    private fun register(task: EMDownloadTask) {
+        task.addTaskReleaseCallback {
+            // 已由cancel()、cancelAll()移除的任务不再处理，避免误删之后以相同taskId创建的任务
+            if (!tasks.remove(task.taskId, task)) return@addTaskReleaseCallback
+            // 完成或取消（包括直接调用task.cancel()）后删除日志；失败时保留（文件已下载的部分可续传），恢复后需手动resume
+            val state = task.getState()
+            if (state == EMDownloadTask.State.Completed || state == EMDownloadTask.State.Canceled) {
+                journal?.remove(task.taskId)
+            } else {
+                journal?.update(task.taskId) { it.state = EMDownloadJournal.STATE_PAUSED }
+            }
+            onTaskFinished(task.taskId)
+        }
+        task.pauseCallback = { onTaskPaused(task) }
+        task.resumeCallback = { requestStart(task) }
+        task.metaCallback = {
+            journal?.update(task.taskId) {
+                it.total = task.totalBytes
+                it.etag = task.etag
+                it.lastModified = task.lastModified
+            }
         }
         tasks[task.taskId] = task
     }
 
+    /**
+     * 暂停：下载中的任务让出名额，排队中的任务移出队列
+     */
     fun pause(taskId: String) {
+        // 由pauseCallback释放名额，见onTaskPaused()
         tasks[taskId]?.pause()
     }
 
+    /**
+     * 恢复：重新排队，有空闲名额时立即开始
+     */
     fun resume(taskId: String) {
-        tasks[taskId]?.resume()
+        tasks[taskId]?.let { enqueue(it) }
     }
 
     fun cancel(taskId: String) {
-        tasks[taskId]?.cancel()
-        tasks.remove(taskId)
+        val task = tasks.remove(taskId) ?: return
+        synchronized(lock) {
+            waiting.removeAll { it.task === task }
+            running.remove(taskId)
+        }
+        task.cancel()
+        journal?.remove(taskId)
+        schedule()
     }
 
     fun cancelAll() {
+        synchronized(lock) {
+            waiting.clear()
+            running.clear()
+        }
         tasks.values.forEach { it.cancel() }
         tasks.clear()
+        journal?.clear()
+    }
+
+    /**
+     * 暂停分组内所有下载中、排队中的任务
+     */
+    fun pauseGroup(group: String) {
+        tasks.values.filter { it.group == group }.forEach { pause(it.taskId) }
+    }
+
+    /**
+     * 恢复分组内所有已暂停的任务，按优先级重新排队
+     */
+    fun resumeGroup(group: String) {
+        tasks.values.filter { it.group == group }.forEach { enqueue(it) }
     }
 
     fun getAllTasks() = tasks
@@ -151,4 +323,73 @@ object EMDownloadManager {
     fun getTask(taskId: String) = tasks[taskId]
 
     fun getTasksCount() = tasks.size
-}
\ No newline at end of file
+
+    fun getRunningCount(): Int = synchronized(lock) { running.size }
+
+    fun getWaitingCount(): Int = synchronized(lock) { waiting.size }
+
+    /**
+     * 已在下载、排队或已结束的任务不重复入队
+     */
+    private fun enqueue(task: EMDownloadTask) {
+        when (task.getState()) {
+            EMDownloadTask.State.Idle,
+            EMDownloadTask.State.Paused -> {}
+            else -> return
+        }
+        synchronized(lock) {
+            if (task.taskId in running || waiting.any { it.task === task }) return
+            waiting.add(Waiting(task, seq++))
+        }
+        journal?.update(task.taskId) { it.state = EMDownloadJournal.STATE_WAITING }
+        schedule()
+    }
+
+    /**
+     * 任务暂停（包括直接调用task.pause()）：下载中的任务让出名额，排队中的任务移出队列
+     */
+    private fun onTaskPaused(task: EMDownloadTask) {
+        if (tasks[task.taskId] !== task) return
+        synchronized(lock) {
+            waiting.removeAll { it.task === task }
+            running.remove(task.taskId)
+        }
+        journal?.update(task.taskId) { it.state = EMDownloadJournal.STATE_PAUSED }
+        schedule()
+    }
+
+    /**
+     * 直接调用task.resume()时重新排队；失败后已移出管理器的任务重新加入
+     * @return false 已有相同taskId的其他任务，该任务不经过排队直接开始
+     */
+    private fun requestStart(task: EMDownloadTask): Boolean {
+        val existing = tasks.putIfAbsent(task.taskId, task)
+        if (existing != null && existing !== task) return false
+        enqueue(task)
+        return true
+    }
+
+    private fun onTaskFinished(taskId: String) {
+        synchronized(lock) {
+            running.remove(taskId)
+        }
+        schedule()
+    }
+
+    /**
+     * 按优先级开始排队中的任务，直到达到maxConcurrent
+     */
+    private fun schedule() {
+        val starts = ArrayList<EMDownloadTask>()
+        synchronized(lock) {
+            while (running.size < maxConcurrent) {
+                val next = waiting.poll() ?: break
+                if (!tasks.containsKey(next.task.taskId)) continue
+                running.add(next.task.taskId)
+                starts.add(next.task)
+            }
+        }
+        // 在锁外开始，回调中再次调用本类的方法不会死锁
+        starts.forEach { it.startQueued() }
+    }
+}
@@ -0,0 +1,49 @@
+package com.wyz.emlibrary.download
+
+import java.io.InputStream
+import java.util.TreeMap
+
+/**
+ * 下载响应
+ * @param code HTTP状态码，0表示client未提供（只实现了EMDownloadClient.request的旧client）
+ * @param headers 响应头，名称不区分大小写，同名多值时以", "拼接
+ * @param body 响应体 ⚠️ 使用方负责关闭
+ * @param contentLength 响应体长度，未知时为-1
+ */
+class EMDownloadResponse(
+    val code: Int,
+    headers: Map<String, String>,
+    val body: InputStream,
+    val contentLength: Long
+) {
+
+    companion object {
+        const val CODE_UNKNOWN = 0
+        const val HTTP_OK = 200
+        const val HTTP_PARTIAL = 206
+
+        /**
+         * 解析Content-Range: bytes start-end/total
+         * @return total，未知（*）或格式不符时为-1
+         */
+        fun parseTotal(contentRange: String?): Long {
+            val total = contentRange?.substringAfterLast('/', "")?.trim() ?: return -1L
+            return total.toLongOrNull() ?: -1L
+        }
+
+        /**
+         * 解析Content-Range的起始位置
+         * @return start，格式不符时为-1
+         */
+        fun parseStart(contentRange: String?): Long {
+            val range = contentRange?.trim()?.removePrefix("bytes")?.trim() ?: return -1L
+            return range.substringBefore('-', "").trim().toLongOrNull() ?: -1L
+        }
+    }
+
+    val headers: Map<String, String> = TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER).apply { putAll(headers) }
+
+    fun header(name: String): String? {
+        return headers[name]
+    }
+}
@@ -0,0 +1,116 @@
+package com.wyz.emlibrary.download
+
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.Properties
+
+/**
+ * 分段下载的一个区间[start, end]（闭区间），downloaded为已写入的字节数
+ * downloaded只由下载该分段的协程更新，其他线程只读
+ */
+internal class EMDownloadSegment(val index: Int, val start: Long, val end: Long) {
+
+    @Volatile
+    var downloaded = 0L
+
+    val length: Long
+        get() = end - start + 1
+
+    /**
+     * 下一个待写入的文件偏移
+     */
+    val position: Long
+        get() = start + downloaded
+
+    val remaining: Long
+        get() = length - downloaded
+
+    val isComplete: Boolean
+        get() = downloaded >= length
+}
+
+/**
+ * 分段计划：文件总大小 + 各分段进度
+ * 进度保存在下载文件旁的Properties文件中，暂停、进程被杀后按分段续传
+ * etag、lastModified为探测时的校验信息，续传时作为If-Range
+ */
+internal class EMDownloadSegmentPlan(val total: Long, val segments: List<EMDownloadSegment>) {
+
+    var etag: String? = null
+    var lastModified: String? = null
+
+    companion object {
+        /**
+         * 单个分段的最小长度，文件较小时减少分段数
+         */
+        private const val MIN_SEGMENT_SIZE = 1024 * 1024L
+
+        private const val KEY_TOTAL = "total"
+        private const val KEY_COUNT = "count"
+        private const val KEY_SEGMENT = "segment."
+        private const val KEY_ETAG = "etag"
+        private const val KEY_LAST_MODIFIED = "lastModified"
+
+        fun split(total: Long, count: Int): EMDownloadSegmentPlan {
+            val realCount = (total / MIN_SEGMENT_SIZE).coerceIn(1L, count.toLong()).toInt()
+            val size = total / realCount
+            val segments = (0 until realCount).map { i ->
+                val start = i * size
+                val end = if (i == realCount - 1) total - 1 else start + size - 1
+                EMDownloadSegment(i, start, end)
+            }
+            return EMDownloadSegmentPlan(total, segments)
+        }
+
+        /**
+         * @return null 文件不存在或内容不完整
+         */
+        fun load(file: File): EMDownloadSegmentPlan? {
+            if (!file.exists()) return null
+            return try {
+                val properties = Properties()
+                FileInputStream(file).use { properties.load(it) }
+                val total = properties.getProperty(KEY_TOTAL)?.toLongOrNull() ?: return null
+                val count = properties.getProperty(KEY_COUNT)?.toIntOrNull() ?: return null
+                val segments = (0 until count).map { i ->
+                    // start,end,downloaded
+                    val values = properties.getProperty(KEY_SEGMENT + i)?.split(',') ?: return null
+                    if (values.size != 3) return null
+                    EMDownloadSegment(i, values[0].toLong(), values[1].toLong()).apply {
+                        downloaded = values[2].toLong().coerceIn(0L, length)
+                    }
+                }
+                EMDownloadSegmentPlan(total, segments).apply {
+                    etag = properties.getProperty(KEY_ETAG)
+                    lastModified = properties.getProperty(KEY_LAST_MODIFIED)
+                }
+            } catch (_: Exception) {
+                null
+            }
+        }
+    }
+
+    val downloaded: Long
+        get() = segments.sumOf { it.downloaded }
+
+    val isComplete: Boolean
+        get() = segments.all { it.isComplete }
+
+    /**
+     * 先写临时文件再改名，避免进程被杀时留下写了一半的进度
+     */
+    fun save(file: File) {
+        val properties = Properties()
+        properties.setProperty(KEY_TOTAL, total.toString())
+        properties.setProperty(KEY_COUNT, segments.size.toString())
+        etag?.let { properties.setProperty(KEY_ETAG, it) }
+        lastModified?.let { properties.setProperty(KEY_LAST_MODIFIED, it) }
+        segments.forEach {
+            properties.setProperty(KEY_SEGMENT + it.index, "${it.start},${it.end},${it.downloaded}")
+        }
+        val temp = File(file.path + ".tmp")
+        FileOutputStream(temp).use { properties.store(it, null) }
+        temp.renameTo(file)
+    }
+}
@@ -2,24 +2,119 @@ package com.wyz.emlibrary.download
 
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.cancel
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import java.io.BufferedOutputStream
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
 import java.util.UUID
 import java.util.concurrent.CopyOnWriteArrayList
 
+/**
+ * 下载任务
+ * segmentCount为1时单连接下载，通过Range: bytes=N-续传
+ * segmentCount大于1时先用Range: bytes=0-0探测文件大小，按区间拆分后通过fork()出的client并行下载，
+ * 各分段按偏移写入同一文件（FileChannel定位写），进度按分段保存在"文件名.emseg"中，暂停、进程被杀后按分段续传
+ * 服务器不支持Range（未返回206）、client未提供状态码或不支持fork()时回退为单连接下载
+ * 续传时带上首次响应的ETag（强校验）或Last-Modified作为If-Range，并校验Content-Range：
+ * 资源未变化时续写；资源已变化时（返回200、Content-Range总大小或ETag不符）丢弃本地文件从头下载，单连接模式直接使用200的完整响应
+ * 只有Content-Range起点不符时不视为资源变化，本次下载失败，已下载的数据保留，可再次resume续传
+ *
+ * @param segmentCount 最大分段数，文件较小时自动减少
+ * @param priority 优先级，EMDownloadManager排队时数值大的先开始，相同优先级先进先出
+ * @param group 分组，可通过EMDownloadManager.pauseGroup()/resumeGroup()整组暂停、恢复
+ */
 class EMDownloadTask(
     private val client: EMDownloadClient,
     private val url: String,
     val file: File,
+    private val segmentCount: Int = 1,
+    val priority: Int = 0,
+    val group: String? = null,
 ) {
 
-    var taskId = UUID.randomUUID().toString()
+    companion object {
+        private const val SEGMENT_SUFFIX = ".emseg"
+        private const val PROGRESS_INTERVAL_MILLIS = 1000L
+
+        /**
+         * resolveOffset()：资源已变化，本地数据不可用
+         */
+        private const val OFFSET_CHANGED = -1L
+
+        /**
+         * resolveOffset()：206的起点与请求不符，不能说明资源变化，本次失败但保留本地数据
+         */
+        private const val OFFSET_MISMATCH = -2L
+
+        /**
+         * 同一url下载到同一文件的任务id相同，进程重启后可据此恢复
+         */
+        fun stableId(url: String, file: File): String {
+            return UUID.nameUUIDFromBytes("$url|${file.absolutePath}".toByteArray()).toString()
+        }
+    }
+
+    var taskId = stableId(url, file)
+
+    /**
+     * 文件总大小，首次响应后得知，未知时为-1；EMDownloadManager恢复任务时从日志中还原
+     */
+    @Volatile
+    var totalBytes = -1L
+        internal set
+
+    /**
+     * 首次响应的校验信息，续传时作为If-Range；EMDownloadManager恢复任务时从日志中还原
+     */
+    @Volatile
+    var etag: String? = null
+        internal set
+
+    @Volatile
+    var lastModified: String? = null
+        internal set
+
+    /**
+     * 本次resume中是否已因资源变化重新下载过，避免服务器反复变化时无限重试
+     */
+    @Volatile
+    private var restartedOnChange = false
+
+    /**
+     * 资源已变化，本地已下载的部分不可用
+     */
+    private class ResourceChangedException(message: String) : IOException(message)
+
+    /**
+     * totalBytes、etag、lastModified变化时回调，用于更新任务日志
+     */
+    internal var metaCallback: (() -> Unit)? = null
+
+    /**
+     * 由EMDownloadManager设置：调用pause()后回调，管理器释放名额或将任务移出队列
+     */
+    internal var pauseCallback: (() -> Unit)? = null
+
+    /**
+     * 由EMDownloadManager设置：调用resume()时回调，返回true表示已由管理器排队，有空闲名额时由管理器调用startQueued()
+     */
+    internal var resumeCallback: (() -> Boolean)? = null
+
+    fun getUrl(): String = url
+
+    internal fun getSegmentCount(): Int = segmentCount
 
     // ================= STATE =================
     sealed class State {
@@ -33,6 +128,8 @@ class EMDownloadTask(
     @Volatile
     private var state: State = State.Idle
 
+    fun getState(): State = state
+
     // ================= CALLBACK =================
     private val callbacks = CopyOnWriteArrayList<TaskCallback>()
     private var releaseCallback: (() -> Unit)? = null
@@ -44,6 +141,12 @@ class EMDownloadTask(
     @Volatile private var progress = 0
     @Volatile private var downloadedBytes = 0L
 
+    // ================= SEGMENT =================
+    private val segmentFile = File(file.path + SEGMENT_SUFFIX)
+    @Volatile private var segmentPlan: EMDownloadSegmentPlan? = null
+    @Volatile private var segmentJob: Job? = null
+    private val segmentClients = CopyOnWriteArrayList<EMDownloadClient>()
+
     // ================= LISTENER =================
     fun addTaskCallback(callback: TaskCallback) {
         callbacks.add(callback)
@@ -61,6 +164,15 @@ class EMDownloadTask(
     fun start() = resume()
 
     fun resume() {
+        if (state == State.Downloading || state == State.Canceled || state == State.Completed) return
+        if (resumeCallback?.invoke() == true) return
+        startQueued()
+    }
+
+    /**
+     * 立即开始，不经过EMDownloadManager排队
+     */
+    internal fun startQueued() {
         if (state == State.Downloading || state == State.Canceled || state == State.Completed) return
         if (state == State.Paused) {
             callbacks.forEach { it.onResumed() }
@@ -68,34 +180,76 @@ class EMDownloadTask(
         ensureScope()
 
         state = State.Downloading
+        restartedOnChange = false
+        // 已有分段进度时继续分段下载，此时文件已预分配，不能按文件长度续传
+        if (segmentCount > 1 || segmentFile.exists()) {
+            resumeSegmented()
+        } else {
+            resumeSingle()
+        }
+    }
+
+    private fun resumeSingle() {
         downloadedBytes = if (file.exists()) file.length() else 0L
+        // 已知大小时，本地文件比预期大说明不是同一个文件，重新下载
+        if (totalBytes > 0 && downloadedBytes > totalBytes) {
+            file.delete()
+            downloadedBytes = 0L
+        }
+        // 进程被杀前已下载完但未来得及回调
+        if (totalBytes > 0 && downloadedBytes == totalBytes) {
+            scope.launch(Dispatchers.IO) { complete() }
+            return
+        }
 
         // 添加进度下载header,方便断点续传
         val headers = mutableMapOf<String, String>()
         headers["Range"] = "bytes=$downloadedBytes-"
+        // 资源变化时服务器直接返回200和完整内容，不会把新内容续写到旧文件后
+        if (downloadedBytes > 0) ifRange()?.let { headers["If-Range"] = it }
 
-        client.request(
+        client.requestResponse(
             url = url,
             headers = headers,
-            callback = { input, contentLength ->
+            callback = { response ->
+                val input = response.body
+                val contentLength = response.contentLength
                 scope.launch(Dispatchers.IO) {
-                    val output = BufferedOutputStream(FileOutputStream(file, true))
-                    val buffer = ByteArray(8192)
-                    var len: Int
+                    val offset = resolveOffset(response)
+                    if (offset == OFFSET_MISMATCH) {
+                        try { input.close() } catch (_: Exception) {}
+                        if (state == State.Downloading) fail("unexpected Content-Range: ${response.header("Content-Range")}")
+                        return@launch
+                    }
+                    if (offset == OFFSET_CHANGED) {
+                        try { input.close() } catch (_: Exception) {}
+                        if (state == State.Downloading && restartOnChange()) {
+                            resumeSingle()
+                        } else if (state == State.Downloading) {
+                            fail("resource changed")
+                        }
+                        return@launch
+                    }
+                    // 200时从头写
+                    downloadedBytes = offset
+                    updateValidators(response)
+                    val output = RandomAccessFile(file, "rw")
                     var current = downloadedBytes
                     val total = downloadedBytes + contentLength
+                    if (contentLength > 0) updateTotal(total)
                     var lastTime = System.currentTimeMillis()
                     var lastBytes = current
                     var speedSmoothed = 0.0
                     var lastCallbackTime = 0L
                     try {
-                        while (true) {
-                            // ================= STATE CHECK =================
-                            if (state != State.Downloading) break
-                            len = input.read(buffer)
-                            if (len == -1) break
-                            output.write(buffer, 0, len)
-                            current += len
+                        // 200时截断旧文件
+                        output.setLength(offset)
+                        // 按块写入并统计进度，不在每次read时计时
+                        EMDownloadBuffers.copy(
+                            input, output.channel, offset, Long.MAX_VALUE,
+                            isActive = { state == State.Downloading }
+                        ) { count ->
+                            current += count
                             downloadedBytes = current
                             // ================= PROGRESS =================
                             if (total > 0) {
@@ -155,7 +309,6 @@ class EMDownloadTask(
                             }
                         }
                     } finally {
-                        try { output.flush() } catch (_: Exception) {}
                         try { output.close() } catch (_: Exception) {}
                         try { input.close() } catch (_: Exception) {}
                     }
@@ -168,8 +321,8 @@ class EMDownloadTask(
                     scope.launch(Dispatchers.Main) {
                         callbacks.forEach {
                             it.onError(e.message ?: "error")
-                            releaseCallback?.invoke()
                         }
+                        releaseCallback?.invoke()
                         release()
                     }
                 }
@@ -177,14 +330,291 @@ class EMDownloadTask(
         )
     }
 
+    /**
+     * 根据响应决定写入起点
+     * @return 写入起点，200时为0；OFFSET_CHANGED 206但总大小或ETag不符，需丢弃本地数据重新请求；OFFSET_MISMATCH 206但起点不符
+     */
+    private fun resolveOffset(response: EMDownloadResponse): Long {
+        val requested = downloadedBytes
+        return when (response.code) {
+            EMDownloadResponse.HTTP_PARTIAL -> {
+                val contentRange = response.header("Content-Range")
+                when {
+                    isChanged(response, EMDownloadResponse.parseTotal(contentRange)) -> OFFSET_CHANGED
+                    EMDownloadResponse.parseStart(contentRange) != requested -> OFFSET_MISMATCH
+                    else -> requested
+                }
+            }
+            // If-Range不匹配或服务器不支持Range，响应为完整内容
+            EMDownloadResponse.HTTP_OK -> 0L
+            // client未提供状态码，只能按原方式续写
+            else -> requested
+        }
+    }
+
+    /**
+     * 未带If-Range（没有校验信息）或服务器忽略If-Range时，通过总大小和ETag判断资源是否变化
+     */
+    private fun isChanged(response: EMDownloadResponse, total: Long): Boolean {
+        if (total > 0 && totalBytes > 0 && total != totalBytes) return true
+        val newEtag = response.header("ETag")
+        val oldEtag = etag
+        return newEtag != null && oldEtag != null && newEtag != oldEtag
+    }
+
+    /**
+     * If-Range只能使用强ETag，弱ETag时使用Last-Modified
+     */
+    private fun ifRange(): String? {
+        return etag?.takeIf { !it.startsWith("W/") } ?: lastModified
+    }
+
+    private fun updateValidators(response: EMDownloadResponse) {
+        if (response.code == EMDownloadResponse.CODE_UNKNOWN) return
+        val newEtag = response.header("ETag")
+        val newLastModified = response.header("Last-Modified")
+        if (newEtag == etag && newLastModified == lastModified) return
+        etag = newEtag
+        lastModified = newLastModified
+        metaCallback?.invoke()
+    }
+
+    /**
+     * 资源已变化：丢弃本地文件和校验信息，由调用方从头下载
+     * @return false 本次resume中已重新下载过一次
+     */
+    private fun restartOnChange(): Boolean {
+        if (restartedOnChange) return false
+        restartedOnChange = true
+        segmentPlan = null
+        try {
+            if (file.exists()) file.delete()
+            if (segmentFile.exists()) segmentFile.delete()
+        } catch (_: Exception) {}
+        etag = null
+        lastModified = null
+        totalBytes = -1L
+        metaCallback?.invoke()
+        return true
+    }
+
+    private suspend fun fail(error: String) {
+        state = State.Idle
+        withContext(Dispatchers.Main) {
+            callbacks.forEach { it.onError(error) }
+            releaseCallback?.invoke()
+            release()
+        }
+    }
+
+    private suspend fun complete() {
+        state = State.Completed
+        withContext(Dispatchers.Main) {
+            callbacks.forEach { it.onComplete(file) }
+            releaseCallback?.invoke()
+            release()
+        }
+    }
+
+    private fun updateTotal(total: Long) {
+        if (totalBytes == total) return
+        totalBytes = total
+        metaCallback?.invoke()
+    }
+
+    // ================= SEGMENTED =================
+    private fun resumeSegmented() {
+        val previous = segmentJob
+        segmentJob = scope.launch(Dispatchers.IO) {
+            try {
+                // 等待上一次（已暂停）的分段写入全部退出，避免两次下载同时写同一分段
+                previous?.join()
+                val plan = segmentPlan ?: loadSegments() ?: probe()
+                if (plan == null) {
+                    // 不支持分段，回退为单连接
+                    if (state == State.Downloading) resumeSingle()
+                    return@launch
+                }
+                segmentPlan = plan
+                updateTotal(plan.total)
+                downloadSegments(plan)
+                if (state == State.Downloading && plan.isComplete) {
+                    segmentFile.delete()
+                    complete()
+                }
+            } catch (e: Exception) {
+                if (e is ResourceChangedException && isActive && state == State.Downloading && restartOnChange()) {
+                    resumeSegmented()
+                    return@launch
+                }
+                segmentPlan?.let { saveSegments(it) }
+                // 被pause/cancel取消，此时state可能已被再次resume改为Downloading
+                if (!isActive) return@launch
+                when (state) {
+                    State.Paused,
+                    State.Canceled -> {}
+                    else -> {
+                        state = State.Idle
+                        withContext(Dispatchers.Main) {
+                            callbacks.forEach {
+                                it.onError(e.message ?: "download error")
+                            }
+                            releaseCallback?.invoke()
+                            release()
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 进程重启后从分段进度文件恢复，下载文件缺失或大小不符时重新下载
+     */
+    private fun loadSegments(): EMDownloadSegmentPlan? {
+        val plan = EMDownloadSegmentPlan.load(segmentFile) ?: return null
+        if (!file.exists() || file.length() != plan.total) {
+            segmentFile.delete()
+            return null
+        }
+        // 未通过任务日志恢复时，校验信息来自分段进度文件
+        if (etag == null && lastModified == null) {
+            etag = plan.etag
+            lastModified = plan.lastModified
+        }
+        return plan
+    }
+
+    /**
+     * 请求第一个字节，206且Content-Range中带有总大小时才分段
+     * @return null 不支持分段
+     */
+    private suspend fun probe(): EMDownloadSegmentPlan? {
+        if (client.fork() == null) return null
+        val response = client.await(url, mapOf("Range" to "bytes=0-0"))
+        try { response.body.close() } catch (_: Exception) {}
+        if (response.code != EMDownloadResponse.HTTP_PARTIAL) return null
+        val total = EMDownloadResponse.parseTotal(response.header("Content-Range"))
+        if (total <= 0) return null
+        if (file.exists()) file.delete()
+        updateValidators(response)
+        return EMDownloadSegmentPlan.split(total, segmentCount)
+    }
+
+    /**
+     * 未完成的分段并行下载，任一分段失败时中断其他分段并抛出异常
+     */
+    private suspend fun downloadSegments(plan: EMDownloadSegmentPlan) {
+        RandomAccessFile(file, "rw").use { raf ->
+            // 预分配，各分段直接写到自己的偏移
+            if (raf.length() != plan.total) raf.setLength(plan.total)
+            val channel = raf.channel
+            coroutineScope {
+                val reporter = launch { reportSegmentProgress(plan) }
+                try {
+                    plan.segments.filter { !it.isComplete }
+                        .map { segment -> async { downloadSegment(segment, channel) } }
+                        .awaitAll()
+                } catch (e: Exception) {
+                    // 阻塞中的read不响应协程取消，需关闭连接
+                    segmentClients.forEach { it.cancel() }
+                    throw e
+                } finally {
+                    // 等待进度协程退出，避免其在完成后再次写入分段进度文件
+                    withContext(NonCancellable) { reporter.cancelAndJoin() }
+                    segmentClients.clear()
+                }
+            }
+            channel.force(false)
+        }
+        saveSegments(plan)
+    }
+
+    private suspend fun downloadSegment(segment: EMDownloadSegment, channel: FileChannel) {
+        val segmentClient = client.fork() ?: throw IOException("client not support fork")
+        segmentClients.add(segmentClient)
+        val headers = HashMap<String, String>()
+        headers["Range"] = "bytes=${segment.position}-${segment.end}"
+        ifRange()?.let { headers["If-Range"] = it }
+        val response = segmentClient.await(url, headers)
+        response.body.use { input ->
+            // If-Range不匹配时服务器返回200和完整内容
+            if (response.code == EMDownloadResponse.HTTP_OK) throw ResourceChangedException("resource changed")
+            if (response.code != EMDownloadResponse.HTTP_PARTIAL) {
+                throw IOException("HTTP ${response.code}, range not supported")
+            }
+            val contentRange = response.header("Content-Range")
+            if (isChanged(response, EMDownloadResponse.parseTotal(contentRange))) {
+                throw ResourceChangedException("resource changed: $contentRange")
+            }
+            // 起点不符不说明资源变化，本次失败，保留已下载的分段
+            if (EMDownloadResponse.parseStart(contentRange) != segment.position) {
+                throw IOException("unexpected Content-Range: $contentRange")
+            }
+            // 服务器多返回的部分属于下一个分段，copy按remaining丢弃
+            EMDownloadBuffers.copy(
+                input, channel, segment.position, segment.remaining,
+                isActive = { state == State.Downloading }
+            ) { count ->
+                segment.downloaded += count
+            }
+        }
+        if (state == State.Downloading && !segment.isComplete) {
+            throw IOException("segment ${segment.index} ended early")
+        }
+    }
+
+    /**
+     * 分段下载时按固定间隔汇总进度、计算速度并保存分段进度，不在每次read时计时
+     */
+    private suspend fun reportSegmentProgress(plan: EMDownloadSegmentPlan) {
+        var lastTime = System.currentTimeMillis()
+        var lastBytes = plan.downloaded
+        var speedSmoothed = 0.0
+        // 取消时delay抛出CancellationException退出
+        while (true) {
+            delay(PROGRESS_INTERVAL_MILLIS)
+            val current = plan.downloaded
+            downloadedBytes = current
+            progress = ((current.toDouble() / plan.total) * 100).toInt()
+
+            val now = System.currentTimeMillis()
+            val speed = (current - lastBytes) * 1000.0 / (now - lastTime).coerceAtLeast(1)
+            speedSmoothed = if (speedSmoothed == 0.0) speed else speedSmoothed * 0.8 + speed * 0.2
+            lastTime = now
+            lastBytes = current
+            val eta = if (speedSmoothed > 0) ((plan.total - current) / speedSmoothed).toLong() else -1L
+
+            saveSegments(plan)
+            withContext(Dispatchers.Main) {
+                callbacks.forEach { it.onProgress(progress, speedSmoothed, eta) }
+            }
+        }
+    }
+
+    private fun saveSegments(plan: EMDownloadSegmentPlan) {
+        // 完成、取消后进度文件已删除，不再写入
+        if (state == State.Canceled || state == State.Completed) return
+        try {
+            plan.etag = etag
+            plan.lastModified = lastModified
+            plan.save(segmentFile)
+        } catch (_: Exception) {}
+    }
+
     // ================= PAUSE（核心：IO中断） =================
     fun pause() {
-        if (state != State.Downloading) return
-
-        state = State.Paused
-        scope.launch(Dispatchers.Main) {
-            callbacks.forEach { it.onPaused() }
+        if (state == State.Downloading) {
+            state = State.Paused
+            // 分段连接直接断开，阻塞中的read立即返回
+            segmentJob?.cancel()
+            segmentClients.forEach { it.cancel() }
+            scope.launch(Dispatchers.Main) {
+                callbacks.forEach { it.onPaused() }
+            }
         }
+        // 排队中尚未开始的任务也通知管理器移出队列
+        pauseCallback?.invoke()
     }
 
     // ================= CANCEL =================
@@ -192,11 +622,16 @@ class EMDownloadTask(
         if (state == State.Canceled) return
 
         state = State.Canceled
+        segmentJob?.cancel()
+        segmentClients.forEach { it.cancel() }
         try {
             if (file.exists()) file.delete()
+            if (segmentFile.exists()) segmentFile.delete()
         } catch (_: Exception) {}
         scope.launch(Dispatchers.Main) {
             callbacks.forEach { it.onCanceled() }
+            // 直接调用cancel()时也通知管理器释放名额、删除日志
+            releaseCallback?.invoke()
             release()
         }
     }
@@ -205,6 +640,7 @@ class EMDownloadTask(
     private fun release() {
         try {
             client.cancel()
+            segmentClients.forEach { it.cancel() }
             scope.cancel()
             callbacks.clear()
         } catch (_: Exception) {}
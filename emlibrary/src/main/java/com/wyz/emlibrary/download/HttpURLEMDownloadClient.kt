@@ -21,6 +21,15 @@ class HttpURLEMDownloadClient : EMDownloadClient {
         headers: Map<String, String>,
         callback: (InputStream, Long) -> Unit,
         error: (Exception) -> Unit
+    ) {
+        requestResponse(url, headers, { callback(it.body, it.contentLength) }, error)
+    }
+
+    override fun requestResponse(
+        url: String,
+        headers: Map<String, String>,
+        callback: (EMDownloadResponse) -> Unit,
+        error: (Exception) -> Unit
     ) {
         canceled = false
         Thread {
@@ -55,9 +64,12 @@ class HttpURLEMDownloadClient : EMDownloadClient {
                     return@Thread
                 }
 
-                val inputStream = conn.inputStream
-                val contentLength = conn.contentLengthLong
-                callback(inputStream, contentLength)
+                val responseHeaders = HashMap<String, String>()
+                conn.headerFields.forEach { (name, values) ->
+                    // name为null的是状态行
+                    if (name != null) responseHeaders[name] = values.joinToString(", ")
+                }
+                callback(EMDownloadResponse(code, responseHeaders, conn.inputStream, conn.contentLengthLong))
             } catch (e: Exception) {
                 if (!canceled) {
                     error(e)
@@ -66,6 +78,13 @@ class HttpURLEMDownloadClient : EMDownloadClient {
         }.start()
     }
 
+    /**
+     * HttpURLConnection每次请求独立连接，直接返回新实例
+     */
+    override fun fork(): EMDownloadClient {
+        return HttpURLEMDownloadClient()
+    }
+
     override fun cancel() {
         canceled = true
         try {
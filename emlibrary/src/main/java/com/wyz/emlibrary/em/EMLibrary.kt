@@ -2,6 +2,7 @@ package com.wyz.emlibrary.em
 
 import android.app.Application
 import com.wyz.emlibrary.db.EMDBManager
+import com.wyz.emlibrary.download.EMDownloadManager
 import java.lang.IllegalArgumentException
 
 object EMLibrary {
@@ -10,6 +11,7 @@ object EMLibrary {
     fun init(application: Application) {
         sApplication = application
         EMDBManager.init(application)
+        EMDownloadManager.init(application)
     }
 
     fun getApplication(): Application {
@@ -0,0 +1,208 @@
+package com.wyz.emlibrary.db
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+/**
+ * EMDBMmapStorage：重启后数据保留、写操作失败整批回滚、损坏记录截断、不支持的版本
+ */
+class EMDBMmapStorageTest {
+
+    companion object {
+        private const val USER = "user"
+        private const val HEADER_SIZE = 16
+        private const val OFFSET_VERSION = 4
+    }
+
+    private lateinit var dir: File
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("emdb_mmap").toFile()
+        file = File(dir, "test.kv")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private inline fun <T> withStorage(block: (EMDBMmapStorage) -> T): T {
+        val storage = EMDBMmapStorage(file)
+        try {
+            return block(storage)
+        } finally {
+            storage.close()
+        }
+    }
+
+    @Test
+    fun valuesSurviveReopen() {
+        withStorage {
+            assertTrue(it.saveKeyValue("text", "value", USER))
+            assertTrue(it.saveTypedValue("long", 42L, USER))
+            assertTrue(it.saveTypedValue("double", 1.5, USER))
+            assertTrue(it.saveTypedValue("bytes", byteArrayOf(1, 2, 3), USER))
+            assertTrue(it.deleteKeyValue("long", USER))
+        }
+        withStorage {
+            assertEquals("value", it.getStoredValue("text", USER))
+            assertNull(it.getStoredValue("long", USER))
+            assertEquals(1.5, it.getStoredValue("double", USER))
+            assertArrayEquals(byteArrayOf(1, 2, 3), it.getStoredValue("bytes", USER) as ByteArray)
+        }
+    }
+
+    @Test
+    fun failedBatchIsRolledBack() {
+        withStorage {
+            assertTrue(it.saveKeyValue("a", "1", USER))
+            // 第三行的类型不支持，写到一半失败
+            val rows = listOf(
+                EMDBBackup.Row(USER, "a", "changed", 0L),
+                EMDBBackup.Row(USER, "b", "2", 0L),
+                EMDBBackup.Row(USER, "c", true, 0L)
+            )
+            assertFalse(it.saveRows(rows))
+            assertEquals("1", it.getStoredValue("a", USER))
+            assertNull(it.getStoredValue("b", USER))
+            // 之后的写入提交时不会带上失败批次的记录
+            assertTrue(it.saveKeyValue("d", "4", USER))
+        }
+        withStorage {
+            assertEquals("1", it.getStoredValue("a", USER))
+            assertNull(it.getStoredValue("b", USER))
+            assertEquals("4", it.getStoredValue("d", USER))
+        }
+    }
+
+    @Test
+    fun corruptedLengthIsTruncated() {
+        withStorage {
+            assertTrue(it.saveKeyValue("a", "1", USER))
+            assertTrue(it.saveKeyValue("b", "2", USER))
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(HEADER_SIZE.toLong())
+            val firstLength = raf.readInt()
+            // 第二条记录的length改为超大值，position + length会溢出Int
+            raf.seek(HEADER_SIZE.toLong() + 8 + firstLength)
+            raf.writeInt(Int.MAX_VALUE)
+        }
+        withStorage {
+            assertEquals("1", it.getStoredValue("a", USER))
+            assertNull(it.getStoredValue("b", USER))
+            // 截断后可以继续写入
+            assertTrue(it.saveKeyValue("c", "3", USER))
+        }
+        withStorage {
+            assertEquals("3", it.getStoredValue("c", USER))
+        }
+    }
+
+    @Test
+    fun corruptedPayloadIsTruncated() {
+        withStorage {
+            assertTrue(it.saveKeyValue("a", "1", USER))
+            assertTrue(it.saveKeyValue("b", "2", USER))
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(HEADER_SIZE.toLong())
+            val firstLength = raf.readInt()
+            // 破坏第二条记录payload的最后一个字节，CRC校验失败
+            raf.seek(HEADER_SIZE.toLong() + 8 + firstLength)
+            val secondLength = raf.readInt()
+            val last = HEADER_SIZE.toLong() + 8 + firstLength + 8 + secondLength - 1
+            raf.seek(last)
+            val byte = raf.read()
+            raf.seek(last)
+            raf.write(byte xor 0xFF)
+        }
+        withStorage {
+            assertEquals("1", it.getStoredValue("a", USER))
+            assertNull(it.getStoredValue("b", USER))
+        }
+    }
+
+    @Test
+    fun unknownVersionIsNotLoaded() {
+        withStorage {
+            assertTrue(it.saveKeyValue("a", "1", USER))
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(OFFSET_VERSION.toLong())
+            raf.writeInt(99)
+        }
+        withStorage {
+            assertNull(it.getStoredValue("a", USER))
+            assertTrue(it.saveKeyValue("b", "2", USER))
+        }
+        assertTrue(File(file.path + ".v99.bak").exists())
+        withStorage {
+            assertEquals("2", it.getStoredValue("b", USER))
+        }
+    }
+
+    /**
+     * 反复覆盖同一组key，记录数远超有效key数量，触发压缩
+     */
+    private fun overwrite(storage: EMDBMmapStorage, rounds: Int) {
+        val value = "v".repeat(1024)
+        for (i in 0 until rounds) {
+            assertTrue(storage.saveKeyValue("key${i % 10}", value + i, USER))
+        }
+    }
+
+    @Test
+    fun compactionKeepsLatestValues() {
+        withStorage { overwrite(it, 1000) }
+        // 1000条1KB记录，压缩后只剩10条
+        assertTrue(file.length() < 1000 * 1024)
+        assertFalse(File(file.path + ".tmp").exists())
+        withStorage {
+            for (i in 990 until 1000) {
+                assertEquals("v".repeat(1024) + i, it.getStoredValue("key${i % 10}", USER))
+            }
+        }
+    }
+
+    @Test
+    fun failedCompactionKeepsStorageUsable() {
+        // 临时文件路径被非空目录占用，压缩无法写入临时文件
+        val blocker = File(file.path + ".tmp")
+        assertTrue(File(blocker, "child").mkdirs())
+        withStorage {
+            overwrite(it, 1000)
+            assertTrue(it.saveKeyValue("after", "value", USER))
+        }
+        withStorage {
+            assertEquals("v".repeat(1024) + 999, it.getStoredValue("key9", USER))
+            assertEquals("value", it.getStoredValue("after", USER))
+        }
+    }
+
+    @Test
+    fun compareAndSetTreatsEmptyAsMissing() {
+        withStorage {
+            // 从未写入的key：expected为""与null都匹配
+            assertTrue(it.compareAndSet("flag", "", "1", USER))
+            assertFalse(it.compareAndSet("flag", "", "2", USER))
+            assertFalse(it.compareAndSet("flag", null, "2", USER))
+            assertTrue(it.compareAndSet("flag", "1", "", USER))
+            // 存储值为""
+            assertTrue(it.compareAndSet("flag", "", "3", USER))
+            assertEquals("3", it.getStoredValue("flag", USER))
+            assertTrue(it.compareAndSet("other", null, "4", USER))
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.wyz.emlibrary.download
+
+import com.sun.net.httpserver.HttpServer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.file.Files
+import java.util.Random
+
+/**
+ * EMDownloadBuffers.copy()：分段按偏移写入、不超出limit；与8KB BufferedOutputStream循环写文件的耗时对比
+ * 下载源为本地HTTP服务（支持Range），并校验写入的文件与源数据一致
+ * 耗时对比默认跳过，通过./gradlew :emlibrary:testDebugUnitTest -Pbenchmark=true运行，结果输出到标准输出
+ */
+class EMDownloadBuffersTest {
+
+    companion object {
+        private const val BENCHMARK_SIZE = 32 * 1024 * 1024
+        private const val SEGMENTS_SIZE = 2 * 1024 * 1024
+        private const val STREAM_BUFFER_SIZE = 8 * 1024
+        private const val WARMUP = 2
+        private const val ROUNDS = 5
+    }
+
+    private lateinit var dir: File
+    private lateinit var server: HttpServer
+    @Volatile
+    private var payload = ByteArray(0)
+    private lateinit var url: String
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("emdl_buffers").toFile()
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/file") { exchange ->
+            // 只支持"bytes=start-end"形式的Range
+            val range = exchange.requestHeaders.getFirst("Range")
+                ?.removePrefix("bytes=")?.split("-")
+            val start = range?.getOrNull(0)?.toIntOrNull() ?: 0
+            val end = range?.getOrNull(1)?.toIntOrNull() ?: (payload.size - 1)
+            val length = end - start + 1
+            if (range != null) {
+                exchange.responseHeaders.add("Content-Range", "bytes $start-$end/${payload.size}")
+            }
+            exchange.sendResponseHeaders(if (range != null) 206 else 200, length.toLong())
+            exchange.responseBody.use { it.write(payload, start, length) }
+        }
+        server.start()
+        url = "http://127.0.0.1:${server.address.port}/file"
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+        dir.deleteRecursively()
+    }
+
+    private fun open(range: LongRange? = null): HttpURLConnection {
+        val connection = URL(url).openConnection() as HttpURLConnection
+        range?.let { connection.setRequestProperty("Range", "bytes=${it.first}-${it.last}") }
+        return connection
+    }
+
+    private fun downloadByBuffers(file: File): Long {
+        val connection = open()
+        try {
+            return RandomAccessFile(file, "rw").use { raf ->
+                connection.inputStream.use { input ->
+                    EMDownloadBuffers.copy(input, raf.channel, 0L, Long.MAX_VALUE, { true }, {})
+                }
+            }
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    private fun downloadByStream(file: File): Long {
+        val connection = open()
+        try {
+            var written = 0L
+            connection.inputStream.use { input ->
+                BufferedOutputStream(FileOutputStream(file), STREAM_BUFFER_SIZE).use { output ->
+                    val buffer = ByteArray(STREAM_BUFFER_SIZE)
+                    while (true) {
+                        val read = input.read(buffer)
+                        if (read == -1) break
+                        output.write(buffer, 0, read)
+                        written += read
+                    }
+                }
+            }
+            return written
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    private fun random(size: Int) = ByteArray(size).also { Random(42).nextBytes(it) }
+
+    @Test
+    fun compareCopyThroughput() {
+        assumeTrue("benchmark disabled", System.getProperty("emlibrary.benchmark") == "true")
+        payload = random(BENCHMARK_SIZE)
+        val buffersFile = File(dir, "buffers.bin")
+        val streamFile = File(dir, "stream.bin")
+        repeat(WARMUP) {
+            downloadByBuffers(buffersFile)
+            downloadByStream(streamFile)
+        }
+        var buffersNanos = 0L
+        var streamNanos = 0L
+        repeat(ROUNDS) {
+            buffersFile.delete()
+            streamFile.delete()
+            var begin = System.nanoTime()
+            assertEquals(BENCHMARK_SIZE.toLong(), downloadByBuffers(buffersFile))
+            buffersNanos += System.nanoTime() - begin
+            begin = System.nanoTime()
+            assertEquals(BENCHMARK_SIZE.toLong(), downloadByStream(streamFile))
+            streamNanos += System.nanoTime() - begin
+            assertArrayEquals(payload, buffersFile.readBytes())
+            assertArrayEquals(payload, streamFile.readBytes())
+        }
+        val mb = BENCHMARK_SIZE / 1024 / 1024
+        println(
+            "benchmark download ${mb}MB：buffers ${buffersNanos / ROUNDS / 1_000_000}ms，" +
+                    "stream ${streamNanos / ROUNDS / 1_000_000}ms"
+        )
+    }
+
+    @Test
+    fun segmentsWriteAtOffsetWithinLimit() {
+        payload = random(SEGMENTS_SIZE)
+        val file = File(dir, "segments.bin")
+        val segmentSize = SEGMENTS_SIZE / 4L
+        RandomAccessFile(file, "rw").use { raf ->
+            // 倒序下载各分段，每段请求时多要1KB，超出limit的部分不应写入
+            for (index in 3 downTo 0) {
+                val start = index * segmentSize
+                val end = minOf(start + segmentSize + 1024, SEGMENTS_SIZE.toLong()) - 1
+                val connection = open(start..end)
+                try {
+                    val written = connection.inputStream.use { input ->
+                        EMDownloadBuffers.copy(input, raf.channel, start, segmentSize, { true }, {})
+                    }
+                    assertEquals(segmentSize, written)
+                } finally {
+                    connection.disconnect()
+                }
+            }
+        }
+        assertArrayEquals(payload, file.readBytes())
+    }
+}
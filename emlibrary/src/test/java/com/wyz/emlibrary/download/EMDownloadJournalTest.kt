@@ -0,0 +1,62 @@
+package com.wyz.emlibrary.download
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * EMDownloadJournal：并发添加的条目seq不重复，重新加载后顺序不变
+ */
+class EMDownloadJournalTest {
+
+    companion object {
+        private const val THREADS = 8
+        private const val ENTRIES_PER_THREAD = 20
+    }
+
+    private lateinit var dir: File
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("emdl_journal").toFile()
+        file = File(dir, "download.journal")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun entry(id: String) = EMDownloadJournal.Entry(
+        id = id,
+        url = "http://localhost/$id",
+        path = File(dir, id).path,
+        segmentCount = 1,
+        priority = 0,
+        group = null,
+        state = EMDownloadJournal.STATE_WAITING,
+        total = -1L
+    )
+
+    @Test
+    fun concurrentPutsGetDistinctSeq() {
+        val journal = EMDownloadJournal(file)
+        val threads = (0 until THREADS).map { t ->
+            Thread {
+                repeat(ENTRIES_PER_THREAD) { journal.put(entry("task_${t}_$it")) }
+            }.apply { start() }
+        }
+        threads.forEach { it.join() }
+
+        val seqs = journal.all().map { it.seq }
+        assertEquals(THREADS * ENTRIES_PER_THREAD, seqs.toSet().size)
+        assertEquals((1L..THREADS * ENTRIES_PER_THREAD).toList(), seqs)
+
+        val reloaded = EMDownloadJournal(file).all()
+        assertEquals(journal.all().map { it.id to it.seq }, reloaded.map { it.id to it.seq })
+    }
+}
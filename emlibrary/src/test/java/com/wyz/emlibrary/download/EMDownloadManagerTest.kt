@@ -0,0 +1,184 @@
+package com.wyz.emlibrary.download
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.InputStream
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * EMDownloadManager排队：优先级、同优先级先进先出、完成/暂停释放名额、分组暂停恢复、直接调用task.pause()/resume()
+ * 使用不联网的client，请求挂起直到测试调用finish()
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class EMDownloadManagerTest {
+
+    companion object {
+        private const val TIMEOUT_SECONDS = 10L
+        private val CONTENT = ByteArray(1024) { it.toByte() }
+    }
+
+    private lateinit var dir: File
+
+    /**
+     * 按开始顺序记录的url
+     */
+    private val started = LinkedBlockingQueue<String>()
+
+    /**
+     * url -> 挂起中的请求回调
+     */
+    private val pending = ConcurrentHashMap<String, (InputStream, Long) -> Unit>()
+
+    private inner class FakeClient : EMDownloadClient {
+        override fun request(
+            url: String,
+            headers: Map<String, String>,
+            callback: (InputStream, Long) -> Unit,
+            error: (Exception) -> Unit
+        ) {
+            pending[url] = callback
+            started.add(url)
+        }
+
+        override fun cancel() {}
+    }
+
+    private val callback = object : EMDownloadTask.TaskCallback {
+        override fun onProgress(percent: Int, speedByte: Double, etaSeconds: Long) {}
+        override fun onComplete(file: File) {}
+        override fun onError(error: String) {}
+    }
+
+    @Before
+    fun setUp() {
+        Dispatchers.setMain(Dispatchers.Unconfined)
+        dir = Files.createTempDirectory("emdl_manager").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        EMDownloadManager.cancelAll()
+        EMDownloadManager.maxConcurrent = EMDownloadManager.DEFAULT_MAX_CONCURRENT
+        dir.deleteRecursively()
+        Dispatchers.resetMain()
+    }
+
+    private fun create(name: String, priority: Int = 0, group: String? = null): EMDownloadTask {
+        return EMDownloadManager.create(
+            client = FakeClient(),
+            url = "http://localhost/$name",
+            file = File(dir, name),
+            callback = callback,
+            priority = priority,
+            group = group
+        )
+    }
+
+    /**
+     * 返回响应体，任务写完文件后完成
+     */
+    private fun finish(name: String) {
+        pending.remove("http://localhost/$name")!!.invoke(ByteArrayInputStream(CONTENT), CONTENT.size.toLong())
+    }
+
+    private fun nextStarted(): String? {
+        return started.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)?.substringAfterLast('/')
+    }
+
+    /**
+     * 确认没有新任务开始
+     */
+    private fun assertNoneStarted() {
+        assertNull(started.poll(200, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun priorityThenFifo() {
+        EMDownloadManager.maxConcurrent = 1
+        create("a")
+        assertEquals("a", nextStarted())
+        create("b")
+        create("c", priority = 5)
+        create("d")
+        create("e", priority = 5)
+        assertNoneStarted()
+        assertEquals(4, EMDownloadManager.getWaitingCount())
+
+        // 优先级高的先开始，相同优先级按创建顺序
+        for ((finished, next) in listOf("a" to "c", "c" to "e", "e" to "b", "b" to "d")) {
+            finish(finished)
+            assertEquals(next, nextStarted())
+        }
+        finish("d")
+        assertNoneStarted()
+        assertEquals(0, EMDownloadManager.getRunningCount())
+        assertEquals(CONTENT.size.toLong(), File(dir, "d").length())
+    }
+
+    @Test
+    fun directPauseAndResumeGoThroughQueue() {
+        EMDownloadManager.maxConcurrent = 1
+        val a = create("a")
+        assertEquals("a", nextStarted())
+        create("b")
+        assertNoneStarted()
+
+        // 直接暂停：释放名额，排队中的b开始
+        a.pause()
+        assertEquals("b", nextStarted())
+        assertEquals(1, EMDownloadManager.getRunningCount())
+
+        // 直接恢复：没有空闲名额时排队，不超过maxConcurrent
+        a.resume()
+        assertNoneStarted()
+        assertNotEquals(EMDownloadTask.State.Downloading, a.getState())
+        assertEquals(1, EMDownloadManager.getWaitingCount())
+
+        finish("b")
+        assertEquals("a", nextStarted())
+        assertEquals(1, EMDownloadManager.getRunningCount())
+        assertEquals(0, EMDownloadManager.getWaitingCount())
+    }
+
+    @Test
+    fun pauseAndResumeGroup() {
+        EMDownloadManager.maxConcurrent = 2
+        create("g1", group = "g")
+        create("g2", group = "g")
+        create("x")
+        assertEquals("g1", nextStarted())
+        assertEquals("g2", nextStarted())
+        assertNoneStarted()
+
+        // 整组暂停让出两个名额，x开始
+        EMDownloadManager.pauseGroup("g")
+        assertEquals("x", nextStarted())
+        assertEquals(1, EMDownloadManager.getRunningCount())
+        assertEquals(0, EMDownloadManager.getWaitingCount())
+
+        // 整组恢复：只剩一个名额，另一个排队
+        EMDownloadManager.resumeGroup("g")
+        val resumed = nextStarted()
+        assertTrue(resumed == "g1" || resumed == "g2")
+        assertNoneStarted()
+        assertEquals(2, EMDownloadManager.getRunningCount())
+        assertEquals(1, EMDownloadManager.getWaitingCount())
+
+        finish("x")
+        assertEquals(if (resumed == "g1") "g2" else "g1", nextStarted())
+    }
+}
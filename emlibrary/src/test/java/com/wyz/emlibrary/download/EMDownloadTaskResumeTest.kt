@@ -0,0 +1,214 @@
+package com.wyz.emlibrary.download
+
+import com.sun.net.httpserver.HttpServer
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.net.InetSocketAddress
+import java.nio.file.Files
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * EMDownloadTask续传校验：If-Range、Content-Range起点/总大小、ETag
+ * 下载源为本地HTTP服务，可模拟资源变化、忽略If-Range、返回错误起点
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class EMDownloadTaskResumeTest {
+
+    companion object {
+        private const val SIZE = 256 * 1024
+        private const val TIMEOUT_SECONDS = 30L
+    }
+
+    /**
+     * 一次请求的Range和If-Range
+     */
+    private class Request(val range: String?, val ifRange: String?)
+
+    private lateinit var dir: File
+    private lateinit var file: File
+    private lateinit var server: HttpServer
+    private lateinit var url: String
+
+    @Volatile private var payload = ByteArray(0)
+    @Volatile private var etag = "\"v1\""
+    /** false时忽略If-Range，总是按Range返回206 */
+    @Volatile private var honorIfRange = true
+    /** 每次请求返回新的ETag */
+    @Volatile private var etagPerRequest = false
+    /** 加到Content-Range起点上的偏移，模拟起点不符 */
+    @Volatile private var startShift = 0
+
+    private val requests = Collections.synchronizedList(ArrayList<Request>())
+    private val servedBytes = AtomicLong()
+    private val etagVersion = AtomicInteger()
+
+    @Before
+    fun setUp() {
+        Dispatchers.setMain(Dispatchers.Unconfined)
+        dir = Files.createTempDirectory("emdl_resume").toFile()
+        file = File(dir, "file.bin")
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/file") { exchange ->
+            val range = exchange.requestHeaders.getFirst("Range")
+            val ifRange = exchange.requestHeaders.getFirst("If-Range")
+            requests.add(Request(range, ifRange))
+            val currentEtag = if (etagPerRequest) "\"v${etagVersion.incrementAndGet()}\"" else etag
+            val data = payload
+            var start = 0
+            var end = data.size - 1
+            var code = 200
+            if (range != null && (!honorIfRange || ifRange == null || ifRange == currentEtag)) {
+                val bounds = range.removePrefix("bytes=").split("-")
+                start = bounds[0].toInt()
+                if (bounds[1].isNotEmpty()) end = minOf(bounds[1].toInt(), data.size - 1)
+                code = 206
+                exchange.responseHeaders.add("Content-Range", "bytes ${start + startShift}-$end/${data.size}")
+            }
+            exchange.responseHeaders.add("ETag", currentEtag)
+            val length = end - start + 1
+            exchange.sendResponseHeaders(code, length.toLong())
+            servedBytes.addAndGet(length.toLong())
+            try {
+                exchange.responseBody.use { it.write(data, start, length) }
+            } catch (_: Exception) {
+            }
+        }
+        server.executor = Executors.newCachedThreadPool()
+        server.start()
+        url = "http://127.0.0.1:${server.address.port}/file"
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+        dir.deleteRecursively()
+        Dispatchers.resetMain()
+    }
+
+    private fun random(seed: Long, size: Int) = ByteArray(size).also { Random(seed).nextBytes(it) }
+
+    /**
+     * 开始下载并等待完成或失败
+     * @return 失败原因，完成时为null
+     */
+    private fun download(task: EMDownloadTask): String? {
+        val latch = CountDownLatch(1)
+        var failure: String? = null
+        task.addTaskCallback(object : EMDownloadTask.TaskCallback {
+            override fun onProgress(percent: Int, speedByte: Double, etaSeconds: Long) {}
+            override fun onComplete(file: File) = latch.countDown()
+            override fun onError(error: String) {
+                failure = error
+                latch.countDown()
+            }
+        })
+        task.start()
+        assertTrue("下载超时", latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+        return failure
+    }
+
+    private fun task(segmentCount: Int = 1) = EMDownloadTask(HttpURLEMDownloadClient(), url, file, segmentCount)
+
+    @Test
+    fun ifRangeMismatchTruncatesAndRewritesFromZero() {
+        // 本地是旧版本的前3/4，新版本只有旧版本一半大
+        val old = random(1, SIZE)
+        file.writeBytes(old.copyOf(SIZE * 3 / 4))
+        payload = random(2, SIZE / 2)
+        etag = "\"v2\""
+        val task = task().apply {
+            etag = "\"v1\""
+            totalBytes = SIZE.toLong()
+        }
+
+        assertNull(download(task))
+        assertEquals(1, requests.size)
+        assertEquals("bytes=${SIZE * 3 / 4}-", requests[0].range)
+        assertEquals("\"v1\"", requests[0].ifRange)
+        assertArrayEquals(payload, file.readBytes())
+    }
+
+    @Test
+    fun matchingRangeAppendsAtOffset() {
+        payload = random(3, SIZE)
+        val offset = SIZE / 3
+        file.writeBytes(payload.copyOf(offset))
+        val task = task().apply {
+            etag = "\"v1\""
+            totalBytes = SIZE.toLong()
+        }
+
+        assertNull(download(task))
+        assertEquals(1, requests.size)
+        assertEquals("bytes=$offset-", requests[0].range)
+        assertEquals("\"v1\"", requests[0].ifRange)
+        assertEquals((SIZE - offset).toLong(), servedBytes.get())
+        assertArrayEquals(payload, file.readBytes())
+    }
+
+    @Test
+    fun changedTotalRestartsOnceFromZero() {
+        payload = random(4, SIZE)
+        val offset = SIZE / 2
+        file.writeBytes(payload.copyOf(offset))
+        // 没有校验信息（不带If-Range），只能通过Content-Range的总大小发现变化
+        val task = task().apply { totalBytes = SIZE + 100L }
+
+        assertNull(download(task))
+        assertEquals(2, requests.size)
+        assertEquals("bytes=$offset-", requests[0].range)
+        assertEquals("bytes=0-", requests[1].range)
+        assertNull(requests[1].ifRange)
+        assertArrayEquals(payload, file.readBytes())
+    }
+
+    @Test
+    fun changedEtagRestartsOnceThenFails() {
+        // 服务器忽略If-Range且每次返回新的ETag，分段请求总能发现变化
+        payload = random(5, SIZE)
+        honorIfRange = false
+        etagPerRequest = true
+
+        val error = download(task(segmentCount = 2))
+        assertNotNull(error)
+        // 探测请求只有首次和重新下载各一次
+        assertEquals(2, requests.count { it.range == "bytes=0-0" })
+    }
+
+    @Test
+    fun startMismatchFailsWithoutDiscardingData() {
+        payload = random(6, SIZE)
+        val offset = SIZE / 4
+        file.writeBytes(payload.copyOf(offset))
+        startShift = 1
+        val task = task().apply {
+            etag = "\"v1\""
+            totalBytes = SIZE.toLong()
+        }
+
+        val error = download(task)
+        assertNotNull(error)
+        assertTrue(error, error!!.contains("Content-Range"))
+        assertEquals(1, requests.size)
+        // 已下载的部分和校验信息保留，可再次续传
+        assertArrayEquals(payload.copyOf(offset), file.readBytes())
+        assertEquals("\"v1\"", task.etag)
+    }
+}